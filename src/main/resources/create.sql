@@ -12,6 +12,14 @@ CREATE TABLE Availabilities (
     PRIMARY KEY (Time, Username)
 );
 
+CREATE TABLE AvailabilitySlots (
+    Time date,
+    Username varchar(255) REFERENCES Caregivers,
+    Slots0 bigint,
+    Slots1 bigint,
+    PRIMARY KEY (Time, Username)
+);
+
 CREATE TABLE Vaccines (
     Name varchar(255),
     Doses int,
@@ -31,5 +39,72 @@ CREATE TABLE Appointments (
     PatientName varchar(255) REFERENCES Patients,
     CaregiverName varchar(255) REFERENCES Caregivers,
     VaccineName varchar(255) REFERENCES Vaccines,
-    PRIMARY KEY (Time, CaregiverName)
-);
\ No newline at end of file
+    Slot int NOT NULL DEFAULT 0,
+    PRIMARY KEY (Time, CaregiverName, Slot),
+    -- the home shard's block of appointment ids (see create_shard.sql): an id past it would be looked up on shard 1
+    CONSTRAINT AppointmentIdBlock CHECK (id < 100000000)
+);
+
+CREATE TABLE AppointmentVersions (
+    Role char(1),
+    Username varchar(255),
+    Version bigint,
+    PRIMARY KEY (Role, Username)
+);
+
+CREATE TABLE AppointmentsArchive (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE AvailabilitiesArchive (
+    Time date,
+    Username varchar(255),
+    Available bit,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE AvailabilitySlotsArchive (
+    Time date,
+    Username varchar(255),
+    Slots0 bigint,
+    Slots1 bigint,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE Cancellations (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    CanceledAt datetime DEFAULT GETDATE(),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE CancellationsArchive (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    CanceledAt datetime,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE Waitlist (
+    id int IDENTITY(1,1),
+    PatientName varchar(255) REFERENCES Patients,
+    VaccineName varchar(255) REFERENCES Vaccines,
+    Time date,
+    AppointmentId int,
+    QueuedAt datetime DEFAULT GETDATE(),
+    PRIMARY KEY (id)
+);
@@ -0,0 +1,87 @@
+-- Schema of an additional date shard (see ShardURLs and ShardMap). A shard only stores the availability and
+-- appointments of its days; the accounts and vaccines stay on the home shard, so there are no foreign keys.
+-- Set @Shard below to the number of the shard before running the script.
+
+CREATE TABLE Availabilities (
+    Time date,
+    Username varchar(255),
+    Available bit,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE AvailabilitySlots (
+    Time date,
+    Username varchar(255),
+    Slots0 bigint,
+    Slots1 bigint,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE Appointments (
+    id int IDENTITY(1,1),
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int NOT NULL DEFAULT 0,
+    PRIMARY KEY (Time, CaregiverName, Slot)
+);
+
+CREATE TABLE AppointmentsArchive (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE AvailabilitiesArchive (
+    Time date,
+    Username varchar(255),
+    Available bit,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE AvailabilitySlotsArchive (
+    Time date,
+    Username varchar(255),
+    Slots0 bigint,
+    Slots1 bigint,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE Cancellations (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    CanceledAt datetime DEFAULT GETDATE(),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE CancellationsArchive (
+    id int,
+    Time date,
+    PatientName varchar(255),
+    CaregiverName varchar(255),
+    VaccineName varchar(255),
+    Slot int,
+    CanceledAt datetime,
+    PRIMARY KEY (id)
+);
+
+-- every shard numbers its appointments from its own block of 100000000 ids, so an id tells its shard; the
+-- constraint fails inserts once the block is used up instead of handing out ids of the next shard. Ids are int,
+-- so @Shard can be at most 20
+DECLARE @Shard int = 1;
+DECLARE @First varchar(12) = CAST(@Shard * 100000000 AS varchar(12));
+DECLARE @End varchar(12) = CAST((@Shard + 1) * 100000000 AS varchar(12));
+DECLARE @Sql nvarchar(max) = 'DBCC CHECKIDENT (''Appointments'', RESEED, ' + @First + ');';
+EXEC (@Sql);
+SET @Sql = 'ALTER TABLE Appointments ADD CONSTRAINT AppointmentIdBlock CHECK (id >= ' + @First + ' AND id < ' + @End
+    + ');';
+EXEC (@Sql);
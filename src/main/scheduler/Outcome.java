@@ -0,0 +1,48 @@
+package scheduler;
+
+import java.util.Set;
+
+// Outcome classifies what a command achieved from the replies it printed: SUCCESS when it did what
+// was asked, REJECTED when the request itself could not be served (bad input, nothing available,
+// not logged in) and FAILED when something went wrong in the system.
+public enum Outcome {
+    SUCCESS, REJECTED, FAILED;
+
+    private static final Set<String> rejections = Set.of(
+            "Username taken, try again!",
+            "User already logged in.",
+            "Please login first!",
+            "Please login as a patient",
+            "Please login as a caregiver first!",
+            "Only archive admins can archive!",
+            "Please enter a valid date!",
+            "Please enter a valid table and date!",
+            "Please enter a valid file name!",
+            "No Caregiver is available!",
+            "Not enough available doses!",
+            "No matching vaccine based on your input!",
+            "No matching appointment based on your input",
+            "Too many login attempts, please try again later!",
+            "Invalid operation name!");
+
+    private static final Set<String> failures = Set.of(
+            "Please try again!",
+            "Service busy, please try again later!",
+            "Failed to create user.",
+            "Login failed.");
+
+    public static Outcome classify(String message) {
+        if (rejections.contains(message)) {
+            return REJECTED;
+        }
+        if (failures.contains(message) || message.startsWith("Error occurred")) {
+            return FAILED;
+        }
+        return SUCCESS;
+    }
+
+    // The more severe of the two outcomes
+    public Outcome worst(Outcome other) {
+        return other.compareTo(this) > 0 ? other : this;
+    }
+}
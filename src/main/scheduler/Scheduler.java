@@ -1,19 +1,51 @@
 package scheduler;
 
+import scheduler.cache.AppointmentCache;
+import scheduler.cache.ScheduleCache;
+import scheduler.cache.VaccineInventory;
+import scheduler.db.Archiver;
 import scheduler.db.ConnectionManager;
+import scheduler.db.DatabaseExecutor;
+import scheduler.db.ReadSession;
+import scheduler.db.ServiceBusyException;
+import scheduler.db.StatementLog;
+import scheduler.event.AuditLog;
+import scheduler.event.EventBus;
+import scheduler.export.ColumnarWriter;
+import scheduler.export.CsvWriter;
+import scheduler.export.RowWriter;
+import scheduler.export.TableExporter;
+import scheduler.jfr.CommandEvent;
+import scheduler.model.Appointment;
+import scheduler.model.AsyncDataAccess;
+import scheduler.model.BulkCancel;
 import scheduler.model.Caregiver;
+import scheduler.model.GroupCommit;
 import scheduler.model.Patient;
-import scheduler.model.Vaccine;
+import scheduler.model.SlotAvailability;
+import scheduler.reminder.Reminders;
+import scheduler.report.CapacityReport;
+import scheduler.util.Slots;
+import scheduler.util.TooManyAttemptsException;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 // Scheduler handles the state of either a caregiver or a patient where each user can perform
 // certain commands that they are assigned to. It also manages interactions between caregivers and patients
@@ -23,10 +55,23 @@ public class Scheduler {
     // objects to keep track of the currently logged-in user
     // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
     //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    // where the replies to the user are printed, and the outcome of the command that is running
+    private final PrintStream out;
+    private Outcome outcome = Outcome.SUCCESS;
+    // when this session last wrote, so its reads avoid a replica that is behind its own changes
+    private final ReadSession readSession = new ReadSession();
+
+    public Scheduler(PrintStream out) {
+        this.out = out;
+    }
 
     public static void main(String[] args) {
+        // get connections, statements and the JIT ready before the first command
+        Warmup.run();
+
         // printing greetings text
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
@@ -36,16 +81,24 @@ public class Scheduler {
         System.out.println("> login_patient <username> <password>");
         System.out.println("> login_caregiver <username> <password>");
         System.out.println("> search_caregiver_schedule <date>");
-        System.out.println("> reserve <date> <vaccine>");
-        System.out.println("> upload_availability <date>");
+        System.out.println("> reserve <date> <vaccine> [<HH:mm>]");
+        System.out.println("> upload_availability <date> [<HH:mm>-<HH:mm>]");
         System.out.println("> cancel <appointment_id>");
+        System.out.println("> cancel_day <date> [<end_date>] [requeue]");
         System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");
+        System.out.println("> show_appointments [all]");
+        System.out.println("> archive <retention_days>");
+        System.out.println("> export <appointments|availabilities|slots|vaccines> <csv|columnar> <file> [<from> [<to>]]");
+        System.out.println("> report <from> <to> [<file>]");
         System.out.println("> logout");
         System.out.println("> quit");
         System.out.println();
 
         // read input from user
+        Scheduler scheduler = new Scheduler(System.out);
+        Archiver.startBackground();
+        AuditLog.start();
+        Reminders.start();
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -55,61 +108,135 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
+            if (!scheduler.runCommand(response)) {
+                break;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
-                return;
-            } else {
-                System.out.println("Invalid operation name!");
+        }
+        Archiver.stopBackground();
+        EventBus.getInstance().shutdown();
+        VaccineInventory.getInstance().shutdown();
+        DatabaseExecutor.shutdown();
+        ConnectionManager.shutdown();
+    }
+
+    // Runs one command line for the user of this scheduler; returns false once the user quits
+    // Parameters:
+    //      String response - the command line as typed by the user
+    public boolean runCommand(String response) {
+        outcome = Outcome.SUCCESS;
+        // split the user input by spaces
+        String[] tokens = response.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            print("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        StatementLog.setCommand(operation); // slow statements are logged with the command that ran them
+        ReadSession.bind(readSession);
+        CommandEvent event = new CommandEvent(); // for Java Flight Recorder, see scheduler.jfr
+        event.begin();
+        String role = currentPatient != null ? "patient" : currentCaregiver != null ? "caregiver" : "none";
+        try {
+            return dispatch(operation, tokens);
+        } catch (ServiceBusyException e) {
+            // the database is down or overloaded: answer right away instead of letting the user wait
+            print("Service busy, please try again later!");
+            return true;
+        } finally {
+            StatementLog.setCommand(null);
+            ReadSession.bind(null);
+            if (event.shouldCommit()) {
+                event.command = operation;
+                event.role = role;
+                event.outcome = outcome.name();
+                event.commit();
             }
         }
     }
 
+    // Runs the command named by operation; returns false once the user quits
+    private boolean dispatch(String operation, String[] tokens) {
+        if (operation.equals("create_patient")) {
+            createPatient(tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(tokens);
+        } else if (operation.equals("cancel_day")) {
+            cancelDay(tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(tokens);
+        } else if (operation.equals("archive")) {
+            archive(tokens);
+        } else if (operation.equals("export")) {
+            export(tokens);
+        } else if (operation.equals("report")) {
+            report(tokens);
+        } else if (operation.equals("logout")) {
+            logout(tokens);
+        } else if (operation.equals("quit")) {
+            print("Bye!");
+            return false;
+        } else {
+            print("Invalid operation name!");
+        }
+        return true;
+    }
+
+    // Starts a session for Warmup, with a user that was never logged in and so needs no database
+    void warmUpAs(Patient patient, Caregiver caregiver) {
+        currentPatient = patient;
+        currentCaregiver = caregiver;
+    }
+
+    // The outcome of the last command, judged by the messages it printed
+    public Outcome getLastOutcome() {
+        return outcome;
+    }
+
+    // The username of the logged-in user, or null if nobody is logged in
+    public String getCurrentUsername() {
+        if (currentPatient != null) {
+            return currentPatient.getUsername();
+        }
+        return currentCaregiver == null ? null : currentCaregiver.getUsername();
+    }
+
+    // Prints a reply to the user and remembers the worst outcome it indicates
+    private void print(String message) {
+        out.println(message);
+        outcome = outcome.worst(Outcome.classify(message));
+    }
+
     // Creates a new patient account and record it in the system
     // Parameters:
     //      String[] tokens - should contain ["create_patient", <username>, <password>]
-    private static void createPatient(String[] tokens) {
+    private void createPatient(String[] tokens) {
         // create_patient <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            print("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            print("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -119,9 +246,10 @@ public class Scheduler {
             currentPatient = new Patient.PatientBuilder(username, salt, hash).build();
             // save to patient information to our database
             currentPatient.saveToDB();
-            System.out.println("Created user " + username);
+            EventBus.getInstance().patientCreated(username);
+            print("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            print("Failed to create user.");
             e.printStackTrace();
         }
     }
@@ -129,7 +257,7 @@ public class Scheduler {
     // Checks if the patient username has already existed in the system
     // Parameters:
     //      String username - the input username
-    private static boolean usernameExistsPatient(String username) {
+    private boolean usernameExistsPatient(String username) {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
@@ -141,7 +269,7 @@ public class Scheduler {
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            print("Error occurred when checking username");
             e.printStackTrace();
         } finally {
             cm.closeConnection();
@@ -152,18 +280,18 @@ public class Scheduler {
     // Creates a new caregiver account and record it in the system
     // Parameters:
     //      String[] tokens - should contain ["create_caregiver", <username>, <password>]
-    private static void createCaregiver(String[] tokens) {
+    private void createCaregiver(String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            print("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            print("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -173,9 +301,10 @@ public class Scheduler {
             currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
             // save to caregiver information to our database
             currentCaregiver.saveToDB();
-            System.out.println("Created user " + username);
+            EventBus.getInstance().caregiverCreated(username);
+            print("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            print("Failed to create user.");
             e.printStackTrace();
         }
     }
@@ -183,7 +312,7 @@ public class Scheduler {
     // Checks if the caregiver username has already existed in the system
     // Parameters:
     //      String username - the input username
-    private static boolean usernameExistsCaregiver(String username) {
+    private boolean usernameExistsCaregiver(String username) {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
@@ -195,7 +324,7 @@ public class Scheduler {
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            print("Error occurred when checking username");
             e.printStackTrace();
         } finally {
             cm.closeConnection();
@@ -206,16 +335,16 @@ public class Scheduler {
     // log a patient in based on their input for username and password
     // Parameters:
     //      String[] tokens - should contains ["login_patient" <username> <password>]
-    private static void loginPatient(String[] tokens) {
+    private void loginPatient(String[] tokens) {
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            print("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            print("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -224,15 +353,18 @@ public class Scheduler {
         Patient patient = null;
         try {
             patient = new Patient.PatientGetter(username, password).get();
+        } catch (TooManyAttemptsException e) {
+            print("Too many login attempts, please try again later!");
+            return;
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            print("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            print("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            print("Logged in as: " + username);
             currentPatient = patient;
         }
     }
@@ -240,16 +372,16 @@ public class Scheduler {
     // log a caregiver in based on their input for username and password
     // Parameters:
     //      String[] tokens - should contains ["login_caregiver" <username> <password>]
-    private static void loginCaregiver(String[] tokens) {
+    private void loginCaregiver(String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            print("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            print("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -258,15 +390,18 @@ public class Scheduler {
         Caregiver caregiver = null;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
+        } catch (TooManyAttemptsException e) {
+            print("Too many login attempts, please try again later!");
+            return;
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            print("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            print("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            print("Logged in as: " + username);
             currentCaregiver = caregiver;
         }
     }
@@ -275,20 +410,41 @@ public class Scheduler {
     // on a specified day
     // Parameters:
     //      String[] - should contain ["search_caregiver_schedule", <date>]
-    private static void searchCaregiverSchedule(String[] tokens) {
+    private void searchCaregiverSchedule(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            print("Please login first!");
             return;
         } // check for login
 
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             return;
         } // check for valid input
         String date = tokens[1];
 
+        try {
+            Date d = Date.valueOf(date);
+            ScheduleCache cache = ScheduleCache.getInstance();
+            ScheduleCache.Schedule schedule = cache.get(d);
+            if (schedule == null) {
+                long[] version = cache.versionOf(d);
+                schedule = ConnectionManager.shardFor(d) != 0 ? readShardSchedule(d) : readSchedule(d);
+                cache.put(d, version, schedule);
+            }
+            for (int row = 0; row < schedule.size(); row++) {
+                print(schedule.line(row)); // print the list out, with the doses left now
+            }
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid date!");
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // Reads the caregivers available on a day stored on the home shard, each with every vaccine
+    private ScheduleCache.Schedule readSchedule(Date d) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectSchedule = "SELECT a.Username, v.Name, v.Doses \n" +
                 "FROM [dbo].[Availabilities] a, [dbo].[Vaccines] v\n" +
@@ -296,24 +452,71 @@ public class Scheduler {
                 "AND a.Time = ?\n" +
                 "ORDER BY a.Username;"; // select all the caregivers available for the day
 
+        String selectSlotSchedule = "SELECT a.Username, a.Slots0, a.Slots1, v.Name, v.Doses \n" +
+                "FROM [dbo].[AvailabilitySlots] a, [dbo].[Vaccines] v\n" +
+                "WHERE (a.Slots0 <> 0 OR a.Slots1 <> 0)\n" +
+                "AND a.Time = ?\n" +
+                "ORDER BY a.Username;"; // select all the caregivers with a free slot on the day
+
+        ScheduleCache.ScheduleBuilder schedule = new ScheduleCache.ScheduleBuilder();
         try {
-            Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(selectSchedule);
+            Connection con = cm.createReadConnection(d);
+            PreparedStatement statement = con.prepareStatement(Slots.enabled() ? selectSlotSchedule : selectSchedule);
             statement.setDate(1, d);
             ResultSet resultSet = statement.executeQuery(); // select all the caregivers available for the day
             while (resultSet.next()) {
-                System.out.println(resultSet.getString("Username") +
-                             " " + resultSet.getString("Name") +
-                             " " + resultSet.getString("Doses")); // print the list out
+                // with time slots, the free slots of the caregiver
+                schedule.add(resultSet.getString("Username"), resultSet.getString("Name"), resultSet.getInt("Doses"),
+                        Slots.enabled() ? new long[]{resultSet.getLong("Slots0"), resultSet.getLong("Slots1")} : null);
             }
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
-        } catch (SQLException e) {
-            System.out.println("Please try again!");
-            e.printStackTrace();
         } finally {
             cm.closeConnection();
         }
+        return schedule.build();
+    }
+
+    // Reads the schedule of a day stored on another shard than the vaccines: the caregivers come from the
+    // day's shard and are combined with the vaccines of the home shard here
+    private ScheduleCache.Schedule readShardSchedule(Date d) throws SQLException {
+        String selectAvailable = Slots.enabled()
+                ? "SELECT Username, Slots0, Slots1 FROM [dbo].[AvailabilitySlots]\n" +
+                "WHERE (Slots0 <> 0 OR Slots1 <> 0) AND Time = ?\n" +
+                "ORDER BY Username;"
+                : "SELECT Username FROM [dbo].[Availabilities]\n" +
+                "WHERE Available = 1 AND Time = ?\n" +
+                "ORDER BY Username;";
+        String selectVaccines = "SELECT Name, Doses FROM [dbo].[Vaccines];";
+
+        List<String> names = new ArrayList<>();
+        List<Integer> stock = new ArrayList<>();
+        ConnectionManager home = new ConnectionManager();
+        try {
+            ResultSet resultSet = home.createReadConnection().prepareStatement(selectVaccines).executeQuery();
+            while (resultSet.next()) {
+                names.add(resultSet.getString("Name"));
+                stock.add(resultSet.getInt("Doses"));
+            }
+        } finally {
+            home.closeConnection();
+        }
+
+        ScheduleCache.ScheduleBuilder schedule = new ScheduleCache.ScheduleBuilder();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.createReadConnection(d).prepareStatement(selectAvailable);
+            statement.setDate(1, d);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                long[] free = Slots.enabled()
+                        ? new long[]{resultSet.getLong("Slots0"), resultSet.getLong("Slots1")} : null;
+                for (int i = 0; i < names.size(); i++) {
+                    schedule.add(resultSet.getString("Username"), names.get(i), stock.get(i), free);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return schedule.build();
     }
 
     // Makes an appointment for the patient, caregiver cannot perform this
@@ -321,35 +524,34 @@ public class Scheduler {
     // specified vaccine doses decrease by 1
     // Parameters:
     //      String[] tokens - should contain ["reserve", <date>, <vaccine>]
-    private static void reserve(String[] tokens) {
+    private void reserve(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            print("Please login first!");
             return;
         } else if (currentCaregiver != null && currentPatient == null) {
-            System.out.println("Please login as a patient");
+            print("Please login as a patient");
             return;
         } // check patient login
 
+        if (Slots.enabled()) {
+            reserveSlot(tokens);
+            return;
+        }
+
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             return;
         } // check for valid input
 
         String date = tokens[1];
         String vaccine = tokens[2];
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectCaregiver = "SELECT TOP 1 a.Username\n" +
-                "FROM [dbo].[Availabilities] a\n" +
-                "WHERE a.Time = ?\n" +
-                "\tAND a.Available = 1\n" +
-                "ORDER BY a.Username"; // get the caregiver available for the day (first one ordered by alphabet)
+        if (GroupCommit.enabled()) {
+            reserveGrouped(date, vaccine);
+            return;
+        }
 
-        String checkDoses = "SELECT *\n" +
-                "FROM [dbo].[Vaccines]\n" +
-                "WHERE Name = ?;"; // get the vaccine name and dose count
+        ConnectionManager cm = new ConnectionManager();
 
         String makeAppointment = "INSERT [dbo].[Appointments] (Time, PatientName, CaregiverName, VaccineName)\n" +
                 "VALUES (?, ?, ?, ?);"; // add the appointment to the system
@@ -359,10 +561,6 @@ public class Scheduler {
                 "WHERE Time = ?" +
                 "\tAND Username = ?;"; // make the selected caregiver unavailable for the day
 
-        String updateVaccine = "UPDATE Vaccines\n" +
-                "SET Doses = Doses - 1\n" +
-                "WHERE Name = ?;"; // update the number of doses for the vaccine (-1)
-
         String getID = "SELECT id\n" +
                 "FROM [dbo].[Appointments]\n" +
                 "WHERE time = ?\n" +
@@ -370,95 +568,273 @@ public class Scheduler {
 
         try {
             Date d = Date.valueOf(date);
-            PreparedStatement statement1 = con.prepareStatement(selectCaregiver);
-            PreparedStatement statement2 = con.prepareStatement(checkDoses);
-            PreparedStatement statement3 = con.prepareStatement(makeAppointment);
-            PreparedStatement statement4 = con.prepareStatement(markUnavailable);
-            PreparedStatement statement5 = con.prepareStatement(updateVaccine);
-            PreparedStatement statement6 = con.prepareStatement(getID);
-
-            statement1.setDate(1, d);
-            statement2.setString(1, vaccine);
-
-            ResultSet resultSet1 = statement1.executeQuery(); // get the caregiver available for the day (first one
-                                                              // ordered by alphabet)
-            ResultSet resultSet2 = statement2.executeQuery(); // get the vaccine and dose count for the vaccine
-
-            String currCaregiver = null;
-            while (resultSet1.next()) {
-                currCaregiver = resultSet1.getString("Username"); // record the selected caregiver
-            }
-            String doseName = null;
-            int dosesCount = 0;
-            while (resultSet2.next()) {
-                doseName = resultSet2.getString("Name"); // record the vaccine name
-                dosesCount = resultSet2.getInt("Doses"); // record the number of doses
-            }
+            // look up the caregiver available for the day (first one ordered by alphabet) and the dose count for
+            // the vaccine at the same time; both borrow connections of their own, so this command borrows its
+            // connection only once they are done
+            CompletableFuture<String> caregiverCheck = AsyncDataAccess.findAvailableCaregiver(d);
+            CompletableFuture<Integer> dosesCheck = AsyncDataAccess.getAvailableDoses(vaccine);
+            VaccineInventory inventory = VaccineInventory.getInstance();
+
+            String currCaregiver = AsyncDataAccess.await(caregiverCheck); // record the selected caregiver
+            Integer dosesCount = AsyncDataAccess.await(dosesCheck);
+
+            Connection con = cm.createConnection(d); // the appointment goes to the shard of the day
+            PreparedStatement statement1 = con.prepareStatement(makeAppointment);
+            PreparedStatement statement2 = con.prepareStatement(markUnavailable);
+            PreparedStatement statement3 = con.prepareStatement(getID);
 
             if (currCaregiver != null) { // check if caregiver is available/exist
-                if (doseName != null) { // check if the input vaccine exists in the system
-                    if (dosesCount > 0) { // check if there is still vaccine left
+                if (dosesCount != null) { // check if the input vaccine exists in the system
+                    if (inventory.tryReserveDose(vaccine)) { // take a dose if there is still vaccine left (-1)
+                        statement1.setDate(1, d);
+                        statement1.setString(2, currentPatient.getUsername());
+                        statement1.setString(3, currCaregiver);
+                        statement1.setString(4, vaccine);
+                        statement2.setDate(1, d);
+                        statement2.setString(2, currCaregiver);
                         statement3.setDate(1, d);
-                        statement3.setString(2, currentPatient.getUsername());
-                        statement3.setString(3, currCaregiver);
-                        statement3.setString(4, vaccine);
-                        statement4.setDate(1, d);
-                        statement4.setString(2, currCaregiver);
-                        statement5.setString(1, vaccine);
-                        statement6.setDate(1, d);
-                        statement6.setString(2, currCaregiver);
-
-                        statement3.execute(); // add the appointment to the system
-                        statement4.execute(); // make the selected caregiver unavailable for the day
-                        statement5.execute(); // update the number of doses for the vaccine (-1)
-                        ResultSet resultSet6 = statement6.executeQuery(); // get the appointment ID that was just created
+                        statement3.setString(2, currCaregiver);
+
+                        try {
+                            statement1.execute(); // add the appointment to the system
+                        } catch (SQLException e) {
+                            inventory.releaseDose(vaccine); // give the dose back if the booking failed
+                            throw e;
+                        }
+                        statement2.execute(); // make the selected caregiver unavailable for the day
+                        ResultSet resultSet3 = statement3.executeQuery(); // get the appointment ID that was just created
 
                         String id = null;
-                        while (resultSet6.next()) {
-                            id = resultSet6.getString("id");
+                        while (resultSet3.next()) {
+                            id = resultSet3.getString("id");
                         }
 
-                        System.out.println("Appointment ID: " + id + ", Caregiver username: " + currCaregiver);
+                        // keep the cached appointment lists of both users up to date
+                        Appointment appointment = new Appointment.AppointmentBuilder(Integer.parseInt(id), d,
+                                currentPatient.getUsername(), currCaregiver, vaccine, 0).build();
+                        recordAppointmentAdded(con, appointment);
+                        ScheduleCache.getInstance().dateChanged(d);
+                        EventBus.getInstance().appointmentReserved(appointment);
+
+                        print("Appointment ID: " + id + ", Caregiver username: " + currCaregiver);
                     } else {
-                        System.out.println("Not enough available doses!");
+                        print("Not enough available doses!");
                     }
                 } else {
-                    System.out.println("No matching vaccine based on your input!");
+                    print("No matching vaccine based on your input!");
                 }
             } else {
-                System.out.println("No Caregiver is available!");
+                print("No Caregiver is available!");
+            }
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid date!");
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Makes the appointment through the group commit stage, in one transaction with the bookings of other sessions
+    private void reserveGrouped(String date, String vaccine) {
+        try {
+            GroupCommit.Result result = AsyncDataAccess.await(GroupCommit.reserve(currentPatient.getUsername(),
+                    Date.valueOf(date), vaccine));
+            if (result.getStatus() == GroupCommit.Status.BOOKED) {
+                print("Appointment ID: " + result.getAppointmentId() + ", Caregiver username: "
+                        + result.getCaregiver());
+            } else if (result.getStatus() == GroupCommit.Status.NO_CAREGIVER) {
+                print("No Caregiver is available!");
+            } else if (result.getStatus() == GroupCommit.Status.NO_VACCINE) {
+                print("No matching vaccine based on your input!");
+            } else {
+                print("Not enough available doses!");
+            }
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid date!");
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // Makes an appointment in a slot of the day when the day is split into slots: the requested slot, or the
+    // earliest free slot of the first caregiver (ordered by alphabet) who has one
+    // Parameters:
+    //      String[] tokens - should contain ["reserve", <date>, <vaccine>] optionally followed by <HH:mm>
+    private void reserveSlot(String[] tokens) {
+        if (tokens.length != 3 && tokens.length != 4) {
+            print("Please try again!");
+            return;
+        } // check for valid input
+
+        String vaccine = tokens[2];
+
+        ConnectionManager cm = new ConnectionManager();
+
+        String makeAppointment = "INSERT [dbo].[Appointments] (Time, PatientName, CaregiverName, VaccineName, Slot)\n" +
+                "VALUES (?, ?, ?, ?, ?);"; // add the appointment to the system
+
+        String getID = "SELECT id\n" +
+                "FROM [dbo].[Appointments]\n" +
+                "WHERE Time = ?\n" +
+                "\tAND CaregiverName = ?\n" +
+                "\tAND Slot = ?;"; // get the appointment ID that was just created
+
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        boolean doseTaken = false; // the dose goes back unless an appointment was made with it
+        try {
+            Date d = Date.valueOf(tokens[1]);
+            int wanted = tokens.length == 4 ? Slots.parse(tokens[3]) : -1;
+            // the dose lookup may borrow a connection of its own, so it is done before this command borrows one
+            Integer dosesCount = AsyncDataAccess.await(AsyncDataAccess.getAvailableDoses(vaccine));
+
+            Connection con = cm.createConnection(d); // the appointment goes to the shard of the day
+            SlotAvailability candidate = SlotAvailability.findAfter(con, d, "", wanted);
+            if (candidate == null) {
+                print("No Caregiver is available!");
+                return;
+            }
+            if (dosesCount == null) {
+                print("No matching vaccine based on your input!");
+                return;
             }
+            if (!inventory.tryReserveDose(vaccine)) { // take a dose if there is still vaccine left (-1)
+                print("Not enough available doses!");
+                return;
+            }
+            doseTaken = true;
+
+            // book a free slot of the candidate; if another session was faster, try the candidate's next free slot
+            // and then the next caregiver
+            String caregiver = null;
+            int slot = -1;
+            int id = -1;
+            while (candidate != null && id < 0) {
+                long[] free = candidate.getFreeSlots();
+                slot = wanted >= 0 ? (Slots.isFree(free, wanted) ? wanted : -1) : Slots.firstFree(free, 0);
+                while (slot >= 0) {
+                    id = bookSlot(con, makeAppointment, getID, d, candidate.getUsername(), vaccine, slot);
+                    if (id >= 0) {
+                        caregiver = candidate.getUsername();
+                        break;
+                    }
+                    slot = wanted >= 0 ? -1 : Slots.firstFree(free, slot + 1);
+                }
+                if (id < 0) {
+                    candidate = SlotAvailability.findAfter(con, d, candidate.getUsername(), wanted);
+                }
+            }
+            if (id < 0) {
+                print("No Caregiver is available!");
+                return;
+            }
+            doseTaken = false; // the appointment has it now
+
+            // keep the cached appointment lists of both users up to date
+            Appointment appointment = new Appointment.AppointmentBuilder(id, d, currentPatient.getUsername(),
+                    caregiver, vaccine, slot).build();
+            recordAppointmentAdded(con, appointment);
+            ScheduleCache.getInstance().dateChanged(d);
+            EventBus.getInstance().appointmentReserved(appointment);
+
+            print("Appointment ID: " + id + ", Caregiver username: " + caregiver + ", Time: " + Slots.format(slot));
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            print("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             e.printStackTrace();
         } finally {
+            if (doseTaken) {
+                try {
+                    inventory.releaseDose(vaccine); // give the dose back if the booking failed
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
             cm.closeConnection();
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
+    // Claims the slot by clearing its bit and inserts the appointment in one transaction, so a failed insert gives
+    // the slot back; returns the id, or -1 if another session claimed the slot first
+    private int bookSlot(Connection con, String makeAppointment, String getID, Date d, String caregiver,
+                         String vaccine, int slot) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            if (!SlotAvailability.claim(con, d, caregiver, slot)) {
+                con.rollback();
+                return -1;
+            }
+            int id = insertSlotAppointment(con, makeAppointment, getID, d, caregiver, vaccine, slot);
+            con.commit(); // without an id the slot is booked already, and its bit rightly stays cleared
+            return id;
+        } catch (SQLException | RuntimeException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // Inserts the appointment for a claimed slot and returns its id, or -1 if the slot turned out to be booked
+    // already (it was uploaded again after it had been booked, so its bit stays cleared)
+    private int insertSlotAppointment(Connection con, String makeAppointment, String getID, Date d, String caregiver,
+                                      String vaccine, int slot) throws SQLException {
+        PreparedStatement statement1 = con.prepareStatement(makeAppointment);
+        statement1.setDate(1, d);
+        statement1.setString(2, currentPatient.getUsername());
+        statement1.setString(3, caregiver);
+        statement1.setString(4, vaccine);
+        statement1.setInt(5, slot);
+        try {
+            statement1.execute(); // add the appointment to the system
+        } catch (SQLIntegrityConstraintViolationException e) {
+            return -1;
+        } catch (SQLException e) {
+            // other drivers report key violations with SQL state 23xxx only
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                return -1;
+            }
+            throw e;
+        }
+        PreparedStatement statement2 = con.prepareStatement(getID);
+        statement2.setDate(1, d);
+        statement2.setString(2, caregiver);
+        statement2.setInt(3, slot);
+        ResultSet resultSet2 = statement2.executeQuery(); // get the appointment ID that was just created
+        return resultSet2.next() ? resultSet2.getInt("id") : -1;
+    }
+
+    private void uploadAvailability(String[] tokens) {
+        // upload_availability <date> [<HH:mm>-<HH:mm>]
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            print("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name),
+        //          or 3 with a time range when the day is split into slots
+        if (tokens.length != 2 && !(tokens.length == 3 && Slots.enabled())) {
+            print("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (Slots.enabled()) {
+                long[] slots = tokens.length == 3 ? Slots.parseRange(tokens[2]) : Slots.wholeDay();
+                SlotAvailability.upload(currentCaregiver.getUsername(), d, slots);
+            } else {
+                currentCaregiver.uploadAvailability(d);
+            }
+            EventBus.getInstance().availabilityUploaded(currentCaregiver.getUsername(), d);
+            print("Availability uploaded!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            print("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            print("Error occurred when uploading availability");
             e.printStackTrace();
         }
     }
@@ -468,15 +844,26 @@ public class Scheduler {
     // Update the system accordingly after the removal
     // Parameters:
     //      String[] tokens: should contain ["cancel", <Appointment ID>]
-    private static void cancel(String[] tokens) {
+    private void cancel(String[] tokens) {
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             return;
         } // check for valid input
 
         String appointmentID = tokens[1];
+        int shard; // the appointment id tells which shard stores it
+        try {
+            shard = ConnectionManager.shardOfAppointment(Integer.parseInt(appointmentID));
+        } catch (NumberFormatException e) {
+            print("Please try again!");
+            return;
+        }
+        if (GroupCommit.enabled() && !Slots.enabled()) {
+            cancelGrouped(Integer.parseInt(appointmentID));
+            return;
+        }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        Connection con = cm.createShardConnection(shard);
 
         String getAppointment = "SELECT *\n" +
                 "FROM [dbo].[Appointments]\n" +
@@ -486,17 +873,16 @@ public class Scheduler {
                                                                  // caregiver/patient
 
         String removeAppointment = "DELETE FROM [dbo].[Appointments]\n" +
-                "WHERE id = ?;"; // remove the appointment from the system
+                "OUTPUT deleted.id, deleted.Time, deleted.PatientName, deleted.CaregiverName, deleted.VaccineName," +
+                " deleted.Slot\n" +
+                "INTO [dbo].[Cancellations] (id, Time, PatientName, CaregiverName, VaccineName, Slot)\n" +
+                "WHERE id = ?;"; // remove the appointment from the system, keeping a record for reports
 
         String updateAvailability = "UPDATE [dbo].[Availabilities]\n" +
                 "SET Available = 1\n" +
                 "WHERE Time = ?\n" +
                 "\tAND Username = ?;"; // make the caregiver available again after cancel
 
-        String updateVaccine = "UPDATE [dbo].[Vaccines]\n" +
-                "SET Doses = Doses + 1\n" +
-                "WHERE Name = ?;"; // update the number of vaccine doses after cancel (+1)
-
         String patientUsername = null;
         String caregiverUsername = null;
 
@@ -516,156 +902,382 @@ public class Scheduler {
             ResultSet resultSet = statement.executeQuery();
 
             String time = null;
+            String patient = null;
             String caregiver = null;
             String vaccine = null;
+            int slot = 0;
             while (resultSet.next()) {
                 time = resultSet.getString("Time");
+                patient = resultSet.getString("PatientName");
                 caregiver = resultSet.getString("CaregiverName");
                 vaccine = resultSet.getString("VaccineName");
+                slot = resultSet.getInt("Slot");
             } // get the appointment associated to the id first
             if (time != null && caregiver != null) { // check if the searched appointment is found in the system
                 PreparedStatement statement2 = con.prepareStatement(removeAppointment);
                 PreparedStatement statement3 = con.prepareStatement(updateAvailability);
-                PreparedStatement statement4 = con.prepareStatement(updateVaccine);
                 statement2.setString(1, appointmentID);
                 statement3.setString(1, time);
                 statement3.setString(2, caregiver);
-                statement4.setString(1, vaccine);
 
                 statement2.execute(); // remove the appointment from the system
-                statement3.execute(); // make the caregiver available again after cancel
-                statement4.execute(); // update the number of vaccine doses after cancel (+1)
+                if (Slots.enabled()) {
+                    SlotAvailability.release(con, Date.valueOf(time), caregiver, slot); // free the slot again
+                } else {
+                    statement3.execute(); // make the caregiver available again after cancel
+                }
+                VaccineInventory.getInstance().releaseDose(vaccine); // update the number of vaccine doses after cancel (+1)
+                recordAppointmentRemoved(con, shard, Integer.parseInt(appointmentID), patient, caregiver);
+                ScheduleCache.getInstance().dateChanged(Date.valueOf(time));
+                EventBus.getInstance().appointmentCanceled(Integer.parseInt(appointmentID), Date.valueOf(time),
+                        patient, caregiver, vaccine, slot);
 
-                System.out.println("Appointment canceled succesfully!");
+                print("Appointment canceled succesfully!");
             } else {
-                System.out.println("No matching appointment based on your input");
+                print("No matching appointment based on your input");
             }
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             e.printStackTrace();
         } finally {
             cm.closeConnection();
         }
     }
 
+    // Cancels the appointment through the group commit stage, in one transaction with the bookings of other sessions
+    private void cancelGrouped(int id) {
+        String patient = currentPatient == null ? null : currentPatient.getUsername();
+        String caregiver = currentCaregiver == null ? null : currentCaregiver.getUsername();
+        try {
+            GroupCommit.Result result = AsyncDataAccess.await(GroupCommit.cancel(id, patient, caregiver));
+            if (result.getStatus() == GroupCommit.Status.CANCELED) {
+                print("Appointment canceled succesfully!");
+            } else {
+                print("No matching appointment based on your input");
+            }
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // Cancels all appointments of the current caregiver on a day or a range of days and makes the caregiver
+    // unavailable for them, e.g. when the caregiver is sick; with requeue the patients are put on the waitlist
+    // to be rebooked. Only caregivers can do this
+    // Parameters:
+    //      String[] tokens - should contain ["cancel_day", <date>] optionally followed by <end_date> and "requeue"
+    private void cancelDay(String[] tokens) {
+        if (currentCaregiver == null) {
+            print("Please login as a caregiver first!");
+            return;
+        }
+        boolean requeue = tokens.length > 2 && tokens[tokens.length - 1].equals("requeue");
+        int dates = requeue ? tokens.length - 2 : tokens.length - 1;
+        if (dates < 1 || dates > 2) {
+            print("Please try again!");
+            return;
+        }
+        try {
+            Date from = Date.valueOf(tokens[1]);
+            Date to = dates == 2 ? Date.valueOf(tokens[2]) : from;
+            List<Appointment> canceled = BulkCancel.cancelDays(currentCaregiver.getUsername(), from, to, requeue);
+            for (Appointment appointment : canceled) {
+                print("Canceled appointment ID: " + appointment.getId() + ", Patient username: "
+                        + appointment.getPatientName() + ", Date: " + appointment.getTime());
+            }
+            print("Canceled " + canceled.size() + " appointments" + (requeue ? ", patients added to the waitlist" : ""));
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid date!");
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
     // Update/Add vaccine doses to the system which can only performed by the caregivers
     // Parameters:
     //      String[] tokens - should contain ["add_doses", <vaccine>, <number>]
-    private static void addDoses(String[] tokens) {
+    private void addDoses(String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            print("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            print("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
         int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        // the inventory creates the vaccine if it is not in the Vaccines table yet, otherwise it adds the doses
+        // to its in-memory counter and saves the change with the next batch
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            VaccineInventory.getInstance().addDoses(vaccineName, doses);
+            ScheduleCache.getInstance().allChanged(); // a new vaccine adds a row for every caregiver
+            EventBus.getInstance().dosesChanged(vaccineName, doses);
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            print("Error occurred when adding doses");
             e.printStackTrace();
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        }
-        System.out.println("Doses updated!");
+        print("Doses updated!");
     }
 
     // Shows all the appointments of the current caregiver/patient which will include
     // the appointment id, the vaccine name, the time of the appointment and the caregiver/patient name
     // Parameter:
-    //      String[] tokens - should contain ["show_appointments"]
-    private static void showAppointments(String[] tokens) {
+    //      String[] tokens - should contain ["show_appointments"], or ["show_appointments", "all"] to include
+    //                        archived appointments
+    private void showAppointments(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            print("Please login first!");
             return;
         } // check for login
-        if (tokens.length > 1) {
-            System.out.println("Please try again!");
+        boolean withArchive = tokens.length == 2 && tokens[1].equals("all"); // include archived appointments
+        if (tokens.length > 2 || (tokens.length == 2 && !withArchive)) {
+            print("Please try again!");
             return;
         } // check valid input
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        if (currentPatient == null && currentCaregiver != null) { // caregiver
-            String getAppointment = "SELECT *\n" +
-                    "FROM [dbo].[Appointments]\n" +
-                    "WHERE CaregiverName = ?\n" +
-                    "ORDER BY id;"; // get all the appointments that has this caregiver's name
-            try {
-                PreparedStatement statement = con.prepareStatement(getAppointment);
-                statement.setString(1, currentCaregiver.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    System.out.println(resultSet.getString("id") +
-                            " " + resultSet.getString("VaccineName") +
-                            " " + resultSet.getString("Time") +
-                            " " + resultSet.getString("PatientName")); // print it out
+        // the appointment cache answers repeated listings from memory and reloads them when they changed
+        AppointmentCache cache = AppointmentCache.getInstance();
+        try {
+            if (currentPatient == null && currentCaregiver != null) { // caregiver
+                List<Appointment> appointments = withArchive
+                        ? cache.getAppointmentsWithArchive(AppointmentCache.CAREGIVER, currentCaregiver.getUsername())
+                        : cache.getAppointments(AppointmentCache.CAREGIVER,
+                        currentCaregiver.getUsername()); // get all the appointments that has this caregiver's name
+                for (Appointment appointment : appointments) {
+                    print(appointment.getId() +
+                            " " + appointment.getVaccineName() +
+                            " " + appointmentTime(appointment) +
+                            " " + appointment.getPatientName()); // print it out
                 }
-            } catch (SQLException e) {
-                System.out.println("Please try again!");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
-            }
-        } else if (currentPatient != null && currentCaregiver == null) { // patient
-            String getAppointment = "SELECT *\n" +
-                    "FROM [dbo].[Appointments]\n" +
-                    "WHERE Patientname = ?\n" +
-                    "ORDER BY id;"; // get all the appointments that has this patient's name
-            try {
-                PreparedStatement statement = con.prepareStatement(getAppointment);
-                statement.setString(1, currentPatient.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    System.out.println(resultSet.getString("id") +
-                            " " + resultSet.getString("VaccineName") +
-                            " " + resultSet.getString("Time") +
-                            " " + resultSet.getString("CaregiverName")); // print it out
+            } else if (currentPatient != null && currentCaregiver == null) { // patient
+                List<Appointment> appointments = withArchive
+                        ? cache.getAppointmentsWithArchive(AppointmentCache.PATIENT, currentPatient.getUsername())
+                        : cache.getAppointments(AppointmentCache.PATIENT,
+                        currentPatient.getUsername()); // get all the appointments that has this patient's name
+                for (Appointment appointment : appointments) {
+                    print(appointment.getId() +
+                            " " + appointment.getVaccineName() +
+                            " " + appointmentTime(appointment) +
+                            " " + appointment.getCaregiverName()); // print it out
                 }
-            } catch (SQLException e) {
-                System.out.println("Please try again!");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
             }
+        } catch (SQLException e) {
+            print("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // The date of an appointment, followed by its start time when the day is split into slots
+    private static String appointmentTime(Appointment appointment) {
+        if (Slots.enabled()) {
+            return appointment.getTime() + " " + Slots.format(appointment.getSlot());
+        }
+        return appointment.getTime().toString();
+    }
+
+    // Bumps the appointment versions of the patient and the caregiver of a new appointment and adds it to their
+    // cached appointment lists. The versions are kept on the home shard, so for appointments stored on another
+    // shard they are bumped over a home connection instead of con
+    private static void recordAppointmentAdded(Connection con, Appointment appointment) throws SQLException {
+        ConnectionManager home = null;
+        if (ConnectionManager.shardFor(appointment.getTime()) != 0) {
+            home = new ConnectionManager();
+            con = home.createConnection();
+        }
+        try {
+            AppointmentCache cache = AppointmentCache.getInstance();
+            long patientVersion = AppointmentCache.bumpVersion(con, AppointmentCache.PATIENT,
+                    appointment.getPatientName());
+            cache.appointmentAdded(AppointmentCache.PATIENT, appointment.getPatientName(), patientVersion,
+                    appointment);
+            long caregiverVersion = AppointmentCache.bumpVersion(con, AppointmentCache.CAREGIVER,
+                    appointment.getCaregiverName());
+            cache.appointmentAdded(AppointmentCache.CAREGIVER, appointment.getCaregiverName(), caregiverVersion,
+                    appointment);
+        } finally {
+            if (home != null) {
+                home.closeConnection();
+            }
+        }
+    }
+
+    // Bumps the appointment versions of the patient and the caregiver of a canceled appointment and removes it from
+    // their cached appointment lists; con is a connection to the given shard, as for recordAppointmentAdded
+    private static void recordAppointmentRemoved(Connection con, int shard, int id, String patient, String caregiver)
+            throws SQLException {
+        ConnectionManager home = null;
+        if (shard != 0) {
+            home = new ConnectionManager();
+            con = home.createConnection();
+        }
+        try {
+            AppointmentCache cache = AppointmentCache.getInstance();
+            cache.appointmentRemoved(AppointmentCache.PATIENT, patient,
+                    AppointmentCache.bumpVersion(con, AppointmentCache.PATIENT, patient), id);
+            cache.appointmentRemoved(AppointmentCache.CAREGIVER, caregiver,
+                    AppointmentCache.bumpVersion(con, AppointmentCache.CAREGIVER, caregiver), id);
+        } finally {
+            if (home != null) {
+                home.closeConnection();
+            }
+        }
+    }
+
+    // Moves appointments and availability older than the given number of days to the archive tables now; it moves
+    // the rows of every user, so only the caregivers listed in ArchiveAdmins can archive
+    // Parameters:
+    //      String[] tokens - should contain ["archive", <retention_days>]
+    private void archive(String[] tokens) {
+        if (currentCaregiver == null) {
+            print("Please login as a caregiver first!");
+            return;
+        }
+        if (!Archiver.isAdmin(currentCaregiver.getUsername())) {
+            print("Only archive admins can archive!");
+            return;
+        }
+        if (tokens.length != 2) {
+            print("Please try again!");
+            return;
+        }
+        try {
+            int retentionDays = Integer.parseInt(tokens[1]);
+            if (retentionDays < 0) {
+                print("Please try again!");
+                return;
+            }
+            print("Archived " + Archiver.archive(retentionDays) + " rows");
+        } catch (NumberFormatException e) {
+            print("Please try again!");
+        } catch (SQLException e) {
+            print("Error occurred when archiving");
+            e.printStackTrace();
+        }
+    }
+
+    // Exports a whole table, or the rows of a date range, to a CSV or columnar binary file; only caregivers can
+    // export
+    // Parameters:
+    //      String[] tokens - should contain ["export", <table>, <format>, <file>] optionally followed by <from> and <to>
+    private void export(String[] tokens) {
+        if (currentCaregiver == null) {
+            print("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length < 4 || tokens.length > 6) {
+            print("Please try again!");
+            return;
+        }
+        String table = tokens[1];
+        String format = tokens[2];
+        if (!format.equals("csv") && !format.equals("columnar")) {
+            print("Please try again!");
+            return;
+        }
+        // everything is checked before the file is opened, so a typo does not truncate an existing file
+        Date from;
+        Date to;
+        try {
+            from = tokens.length > 4 ? Date.valueOf(tokens[4]) : null;
+            to = tokens.length > 5 ? Date.valueOf(tokens[5]) : null;
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid table and date!");
+            return;
+        }
+        if (!TableExporter.isTable(table)) {
+            print("Please enter a valid table and date!");
+            return;
+        }
+        Path path;
+        try {
+            path = Paths.get(tokens[3]);
+        } catch (InvalidPathException e) {
+            print("Please enter a valid file name!");
+            return;
+        }
+        try {
+            RowWriter writer = format.equals("csv") ? new CsvWriter(path) : new ColumnarWriter(path, 65_536);
+            long rows;
+            try (writer) {
+                rows = TableExporter.export(table, from, to, writer);
+            }
+            print("Exported " + rows + " rows to " + path);
+        } catch (SQLException | IOException e) {
+            print("Error occurred when exporting");
+            e.printStackTrace();
+        }
+    }
+
+    // Prints how many slots were offered, booked and canceled per day, caregiver and vaccine between two days, and
+    // the doses each vaccine is projected to be short of; writes the report to a file instead if one is given. Only
+    // caregivers can report
+    // Parameters:
+    //      String[] tokens - should contain ["report", <from>, <to>] optionally followed by <file>
+    private void report(String[] tokens) {
+        if (currentCaregiver == null) {
+            print("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length < 3 || tokens.length > 4) {
+            print("Please try again!");
+            return;
+        }
+        CapacityReport report;
+        try {
+            report = CapacityReport.run(Date.valueOf(tokens[1]), Date.valueOf(tokens[2]));
+        } catch (IllegalArgumentException e) {
+            print("Please enter a valid date!");
+            return;
+        } catch (SQLException e) {
+            print("Error occurred when reporting");
+            e.printStackTrace();
+            return;
+        }
+        List<String> lines = report.lines();
+        if (tokens.length == 3) {
+            for (String line : lines) {
+                print(line);
+            }
+            return;
+        }
+        Path path;
+        try {
+            path = Paths.get(tokens[3]);
+        } catch (InvalidPathException e) {
+            print("Please enter a valid file name!");
+            return;
+        }
+        try {
+            Files.write(path, lines);
+            print("Wrote the report to " + path);
+        } catch (IOException e) {
+            print("Error occurred when reporting");
+            e.printStackTrace();
         }
     }
 
     // Logouts of the current user
     // Parameters:
     //      String[] tokens - Should only contain ["logout"]
-    private static void logout(String[] tokens) {
+    private void logout(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            print("Please login first!");
             return;
         }
+        // the cached appointments belong to this session
+        if (currentPatient != null) {
+            AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, currentPatient.getUsername());
+        }
+        if (currentCaregiver != null) {
+            AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, currentCaregiver.getUsername());
+        }
         currentPatient = null;
         currentCaregiver = null;
-        System.out.println("Succesfully logged out!");
+        print("Succesfully logged out!");
     }
 }
@@ -0,0 +1,94 @@
+package scheduler;
+
+import scheduler.cache.AppointmentCache;
+import scheduler.cache.VaccineInventory;
+import scheduler.db.ConnectionManager;
+import scheduler.db.DatabaseExecutor;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+// Warmup prepares the process for its first command right after start: it loads the JDBC driver, opens the
+// pooled connections, runs the core read statements twice so the driver has prepared them on the server, and
+// exercises the password hashing and command parsing paths until the JIT has compiled them. It is controlled by
+// WarmUp (default 1, 0 turns it off) and WarmUpIterations (default 2000).
+public class Warmup {
+
+    // a name no user or vaccine can have, since commands split their input on spaces
+    private static final String nobody = "warm up";
+
+    private Warmup() {
+    }
+
+    public static void run() {
+        if (Util.intSetting("WarmUp", 1) == 0) {
+            return;
+        }
+        int iterations = Util.intSetting("WarmUpIterations", 2000);
+
+        // eager initialization of the driver, the pools and the shared singletons
+        ConnectionManager.prefill(Util.intSetting("MaxIdleConnections", 4));
+        VaccineInventory.getInstance();
+        AppointmentCache.getInstance();
+        DatabaseExecutor.get();
+
+        warmStatements();
+        warmHashing(iterations / 100);
+        warmParsing(iterations);
+    }
+
+    // Runs the read statements of the common commands twice: the driver only prepares a statement on the server
+    // the second time it runs (enablePrepareOnFirstPreparedStatementCall is off by default), and with its
+    // statement cache the handle is then kept on the pooled connection that serves the first commands
+    private static void warmStatements() {
+        try {
+            for (int i = 0; i < 2; i++) {
+                new Vaccine.VaccineGetter(nobody).get();
+                Caregiver.findAvailable(Date.valueOf(LocalDate.now()));
+                AppointmentCache.getInstance().getAppointments(AppointmentCache.PATIENT, nobody);
+                AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, nobody);
+                AppointmentCache.getInstance().getAppointments(AppointmentCache.CAREGIVER, nobody);
+                AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, nobody);
+            }
+        } catch (SQLException | RuntimeException e) {
+            System.out.println("Warm-up could not reach the database");
+        } finally {
+            AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, nobody);
+            AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, nobody);
+        }
+    }
+
+    // Looks up the key factory and gets the PBKDF2 code compiled
+    private static void warmHashing(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            Util.generateHash("warm-up", Util.generateSalt());
+        }
+    }
+
+    // Runs commands that are answered before any database access on sessions of a patient and a caregiver that
+    // only exist in memory, which exercises the command parsing and validation code past the login checks.
+    // Every line is invalid input or a command the role may not run, so nothing is read or written
+    private static void warmParsing(int iterations) {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Scheduler patient = new Scheduler(discard);
+        patient.warmUpAs(new Patient.PatientBuilder(nobody, new byte[0], new byte[0]).build(), null);
+        Scheduler caregiver = new Scheduler(discard);
+        caregiver.warmUpAs(null, new Caregiver.CaregiverBuilder(nobody, new byte[0], new byte[0]).build());
+        String[] patientLines = {"search_caregiver_schedule 2024-13-01", "reserve 2024-01-01", "cancel x",
+                "upload_availability 2024-01-01", "add_doses vaccine 1", "login_patient a", "unknown"};
+        String[] caregiverLines = {"upload_availability 2024-13-01", "add_doses vaccine", "cancel_day 2024-13-01",
+                "reserve 2024-01-01 vaccine", "export unknown csv warm-up.csv", "report 2024-13-01 2024-01-01",
+                "archive x", "login_caregiver a"};
+        for (int i = 0; i < iterations; i++) {
+            patient.runCommand(patientLines[i % patientLines.length]);
+            caregiver.runCommand(caregiverLines[i % caregiverLines.length]);
+        }
+    }
+}
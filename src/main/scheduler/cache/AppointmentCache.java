@@ -0,0 +1,359 @@
+package scheduler.cache;
+
+import scheduler.db.ConnectionManager;
+import scheduler.model.Appointment;
+import scheduler.model.AsyncDataAccess;
+import scheduler.util.IntList;
+import scheduler.util.IntObjectMap;
+import scheduler.util.NameDictionary;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// AppointmentCache remembers the appointments of the users logged in to this process. The list is loaded
+// by the first show_appointments and then kept up to date by reserve and cancel. Every reserve/cancel
+// also bumps a per-user version number in the AppointmentVersions table; a cached list is only trusted
+// while its version matches, so changes made by other nodes are picked up. Within the revalidation
+// window a repeated show_appointments does not touch the database at all.
+// Cached lists are stored as columns of ints (dictionary ids for the names, epoch days for the dates) keyed
+// by the user's id, and only turned into Appointment objects when they are read.
+// When the storage is sharded by date the versions stay on the home shard and the appointments are read from
+// every shard in parallel.
+public class AppointmentCache {
+
+    public static final char PATIENT = 'P';
+    public static final char CAREGIVER = 'C';
+
+    private static final String getVersion = "SELECT Version FROM AppointmentVersions WHERE Role = ? AND Username = ?;";
+
+    private static final String bumpVersion = "MERGE AppointmentVersions AS v\n" +
+            "USING (SELECT ? AS Role, ? AS Username) AS s\n" +
+            "ON v.Role = s.Role AND v.Username = s.Username\n" +
+            "WHEN MATCHED THEN UPDATE SET Version = v.Version + 1\n" +
+            "WHEN NOT MATCHED THEN INSERT (Role, Username, Version) VALUES (s.Role, s.Username, 1)\n" +
+            "OUTPUT inserted.Version;";
+
+    private static final String bumpVersionsBatch = "MERGE AppointmentVersions AS v\n" +
+            "USING (SELECT ? AS Role, ? AS Username) AS s\n" +
+            "ON v.Role = s.Role AND v.Username = s.Username\n" +
+            "WHEN MATCHED THEN UPDATE SET Version = v.Version + 1\n" +
+            "WHEN NOT MATCHED THEN INSERT (Role, Username, Version) VALUES (s.Role, s.Username, 1);";
+
+    private static final String getPatientAppointments = "SELECT *\n" +
+            "FROM [dbo].[Appointments]\n" +
+            "WHERE PatientName = ?\n" +
+            "ORDER BY id;";
+
+    private static final String getCaregiverAppointments = "SELECT *\n" +
+            "FROM [dbo].[Appointments]\n" +
+            "WHERE CaregiverName = ?\n" +
+            "ORDER BY id;";
+
+    private static final String getArchivedPatientAppointments = "SELECT *\n" +
+            "FROM [dbo].[AppointmentsArchive]\n" +
+            "WHERE PatientName = ?\n" +
+            "ORDER BY id;";
+
+    private static final String getArchivedCaregiverAppointments = "SELECT *\n" +
+            "FROM [dbo].[AppointmentsArchive]\n" +
+            "WHERE CaregiverName = ?\n" +
+            "ORDER BY id;";
+
+    private static final AppointmentCache instance =
+            new AppointmentCache(Util.intSetting("AppointmentCacheRevalidateSeconds", 10));
+
+    // guarded by this
+    private final IntObjectMap<Entry> patientEntries = new IntObjectMap<>();
+    private final IntObjectMap<Entry> caregiverEntries = new IntObjectMap<>();
+    private final long revalidateMillis;
+
+    private AppointmentCache(int revalidateSeconds) {
+        this.revalidateMillis = revalidateSeconds * 1000L;
+    }
+
+    public static AppointmentCache getInstance() {
+        return instance;
+    }
+
+    // Returns the appointments of the user ordered by id, from memory when the cached copy is still valid
+    public List<Appointment> getAppointments(char role, String username) throws SQLException {
+        int user = dictionary(role).intern(username);
+        Entry entry = get(role, user);
+        if (entry != null && System.currentTimeMillis() - entry.checkedAt < revalidateMillis) {
+            return entry.rows.toAppointments();
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createReadConnection();
+        try {
+            long version = readVersion(con, role, username);
+            // a replica may not have seen our own latest bump yet, so an older version is still fine
+            if (entry != null && version <= entry.version) {
+                entry.checkedAt = System.currentTimeMillis();
+                return entry.rows.toAppointments();
+            }
+            String select = role == PATIENT ? getPatientAppointments : getCaregiverAppointments;
+            Rows rows;
+            if (ConnectionManager.isSharded()) {
+                rows = readShards(select, username);
+            } else {
+                PreparedStatement statement = con.prepareStatement(select);
+                statement.setString(1, username);
+                rows = readRows(statement.executeQuery());
+            }
+            synchronized (this) {
+                entries(role).put(user, new Entry(version, rows));
+            }
+            return rows.toAppointments();
+        } catch (SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Returns the appointments of the user ordered by id including the archived ones. Archived appointments are
+    // read from the archive table every time, only the current ones come from the cache; an appointment archived
+    // while the cached list was read is listed once
+    public List<Appointment> getAppointmentsWithArchive(char role, String username) throws SQLException {
+        List<Appointment> appointments = readShards(role == PATIENT ? getArchivedPatientAppointments
+                : getArchivedCaregiverAppointments, username).toAppointments();
+        IntObjectMap<Appointment> archived = new IntObjectMap<>(appointments.size());
+        for (Appointment appointment : appointments) {
+            archived.put(appointment.getId(), appointment);
+        }
+        for (Appointment appointment : getAppointments(role, username)) {
+            if (!archived.containsKey(appointment.getId())) {
+                appointments.add(appointment);
+            }
+        }
+        appointments.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        return appointments;
+    }
+
+    // Bumps the appointment version of a user on the given connection and returns the new version
+    public static long bumpVersion(Connection con, char role, String username) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(bumpVersion);
+        statement.setString(1, String.valueOf(role));
+        statement.setString(2, username);
+        ResultSet resultSet = statement.executeQuery();
+        resultSet.next();
+        return resultSet.getLong(1);
+    }
+
+    // Bumps the appointment versions of several users in one batch, for changes that drop cached lists instead
+    // of updating them
+    public static void bumpVersions(Connection con, char role, Collection<String> usernames) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(bumpVersionsBatch);
+        for (String username : usernames) {
+            statement.setString(1, String.valueOf(role));
+            statement.setString(2, username);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    // Adds a new appointment to the cached list, if the list is cached and was current before the change
+    public synchronized void appointmentAdded(char role, String username, long newVersion, Appointment appointment) {
+        int user = dictionary(role).find(username);
+        Entry entry = entries(role).get(user);
+        if (user == 0 || entry == null) {
+            return;
+        }
+        if (entry.version != newVersion - 1) {
+            entries(role).remove(user);
+            return;
+        }
+        Rows rows = entry.rows.copy();
+        rows.insert(appointment);
+        entries(role).put(user, new Entry(newVersion, rows));
+    }
+
+    // Removes a canceled appointment from the cached list, if the list is cached and was current before
+    public synchronized void appointmentRemoved(char role, String username, long newVersion, int id) {
+        int user = dictionary(role).find(username);
+        Entry entry = entries(role).get(user);
+        if (user == 0 || entry == null) {
+            return;
+        }
+        if (entry.version != newVersion - 1) {
+            entries(role).remove(user);
+            return;
+        }
+        Rows rows = entry.rows.copy();
+        rows.remove(id);
+        entries(role).put(user, new Entry(newVersion, rows));
+    }
+
+    // Drops the cached list of a user, e.g. when they log out
+    public synchronized void evict(char role, String username) {
+        int user = dictionary(role).find(username);
+        if (user != 0) {
+            entries(role).remove(user);
+        }
+    }
+
+    private synchronized Entry get(char role, int user) {
+        return entries(role).get(user);
+    }
+
+    private IntObjectMap<Entry> entries(char role) {
+        return role == PATIENT ? patientEntries : caregiverEntries;
+    }
+
+    private static NameDictionary dictionary(char role) {
+        return role == PATIENT ? NameDictionary.PATIENTS : NameDictionary.CAREGIVERS;
+    }
+
+    private static long readVersion(Connection con, char role, String username) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(getVersion);
+        statement.setString(1, String.valueOf(role));
+        statement.setString(2, username);
+        ResultSet resultSet = statement.executeQuery();
+        return resultSet.next() ? resultSet.getLong("Version") : 0;
+    }
+
+    // Reads the appointments of the user from every shard in parallel. Each shard numbers its appointments from
+    // its own block of ids, so appending the shards in order keeps the rows ordered by id
+    private static Rows readShards(String select, String username) throws SQLException {
+        List<CompletableFuture<Rows>> reads = new ArrayList<>();
+        for (int shard = 0; shard < ConnectionManager.shardCount(); shard++) {
+            int target = shard;
+            reads.add(AsyncDataAccess.run(() -> readShard(target, select, username)));
+        }
+        Rows rows = new Rows();
+        for (CompletableFuture<Rows> read : reads) {
+            rows.append(AsyncDataAccess.await(read));
+        }
+        return rows;
+    }
+
+    private static Rows readShard(int shard, String select, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = shard == 0 ? cm.createReadConnection() : cm.createShardConnection(shard);
+        try {
+            PreparedStatement statement = con.prepareStatement(select);
+            statement.setString(1, username);
+            return readRows(statement.executeQuery());
+        } catch (SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Rows readRows(ResultSet resultSet) throws SQLException {
+        Rows rows = new Rows();
+        while (resultSet.next()) {
+            rows.add(resultSet.getInt("id"), resultSet.getDate("Time").toLocalDate().toEpochDay(),
+                    NameDictionary.PATIENTS.intern(resultSet.getString("PatientName")),
+                    NameDictionary.CAREGIVERS.intern(resultSet.getString("CaregiverName")),
+                    NameDictionary.VACCINES.intern(resultSet.getString("VaccineName")), resultSet.getInt("Slot"));
+        }
+        return rows;
+    }
+
+    private static class Entry {
+        private final long version;
+        private final Rows rows;
+        private volatile long checkedAt = System.currentTimeMillis();
+
+        private Entry(long version, Rows rows) {
+            this.version = version;
+            this.rows = rows;
+        }
+    }
+
+    // The appointments of one user as parallel int columns ordered by id. A Rows is never changed once it
+    // is in an Entry; updates copy it first.
+    private static class Rows {
+        private final IntList ids;
+        private final IntList days;
+        private final IntList patients;
+        private final IntList caregivers;
+        private final IntList vaccines;
+        private final IntList slots;
+
+        private Rows() {
+            this(new IntList(), new IntList(), new IntList(), new IntList(), new IntList(), new IntList());
+        }
+
+        private Rows(IntList ids, IntList days, IntList patients, IntList caregivers, IntList vaccines,
+                     IntList slots) {
+            this.ids = ids;
+            this.days = days;
+            this.patients = patients;
+            this.caregivers = caregivers;
+            this.vaccines = vaccines;
+            this.slots = slots;
+        }
+
+        private void add(int id, long day, int patient, int caregiver, int vaccine, int slot) {
+            ids.add(id);
+            days.add((int) day);
+            patients.add(patient);
+            caregivers.add(caregiver);
+            vaccines.add(vaccine);
+            slots.add(slot);
+        }
+
+        private void append(Rows other) {
+            for (int i = 0; i < other.ids.size(); i++) {
+                add(other.ids.get(i), other.days.get(i), other.patients.get(i), other.caregivers.get(i),
+                        other.vaccines.get(i), other.slots.get(i));
+            }
+        }
+
+        // Inserts the appointment at its place in id order
+        private void insert(Appointment appointment) {
+            int at = ids.size();
+            while (at > 0 && ids.get(at - 1) > appointment.getId()) {
+                at--;
+            }
+            ids.insert(at, appointment.getId());
+            days.insert(at, (int) appointment.getTime().toLocalDate().toEpochDay());
+            patients.insert(at, NameDictionary.PATIENTS.intern(appointment.getPatientName()));
+            caregivers.insert(at, NameDictionary.CAREGIVERS.intern(appointment.getCaregiverName()));
+            vaccines.insert(at, NameDictionary.VACCINES.intern(appointment.getVaccineName()));
+            slots.insert(at, appointment.getSlot());
+        }
+
+        private void remove(int id) {
+            int at = ids.indexOf(id);
+            if (at < 0) {
+                return;
+            }
+            ids.removeAt(at);
+            days.removeAt(at);
+            patients.removeAt(at);
+            caregivers.removeAt(at);
+            vaccines.removeAt(at);
+            slots.removeAt(at);
+        }
+
+        private Rows copy() {
+            return new Rows(ids.copy(), days.copy(), patients.copy(), caregivers.copy(), vaccines.copy(),
+                    slots.copy());
+        }
+
+        private List<Appointment> toAppointments() {
+            List<Appointment> appointments = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                appointments.add(new Appointment.AppointmentBuilder(ids.get(i),
+                        Date.valueOf(LocalDate.ofEpochDay(days.get(i))), NameDictionary.PATIENTS.name(patients.get(i)),
+                        NameDictionary.CAREGIVERS.name(caregivers.get(i)), NameDictionary.VACCINES.name(vaccines.get(i)),
+                        slots.get(i)).build());
+            }
+            return appointments;
+        }
+    }
+}
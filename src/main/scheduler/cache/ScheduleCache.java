@@ -0,0 +1,176 @@
+package scheduler.cache;
+
+import scheduler.util.IntList;
+import scheduler.util.NameDictionary;
+import scheduler.util.Slots;
+import scheduler.util.Util;
+
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ScheduleCache remembers the answers of search_caregiver_schedule by date, evicting the least recently searched
+// date once it holds ScheduleCacheSize (default 1024, 0 turns it off) of them. Every date has a version:
+// upload_availability, reserve and cancel bump the version of their date and add_doses bumps all of them, so an
+// answer is only used while the versions it was read at are unchanged and a search never misses a write made by
+// this process. Writes made by other nodes are picked up once an answer is ScheduleCacheTtlMillis old (default 0,
+// kept until a local write).
+// The versions live in a fixed array indexed by the epoch day, so dates sharing a counter invalidate each other
+// now and then but no date ever needs a map entry of its own.
+// Answers keep the doses read from the database only as a fallback: doses are taken from VaccineInventory when the
+// answer is printed, so a reservation does not invalidate the answers of the other dates. Caregivers and vaccines
+// are kept as NameDictionary ids and free slots as bits, so a cached answer holds no strings or boxed numbers.
+public class ScheduleCache {
+
+    private static final int VERSION_SLOTS = 4096;
+
+    private static final ScheduleCache instance = new ScheduleCache(Util.intSetting("ScheduleCacheSize", 1024),
+            Util.intSetting("ScheduleCacheTtlMillis", 0));
+
+    private final int maxDates;
+    private final long ttlMillis;
+    private final AtomicLongArray dateVersions = new AtomicLongArray(VERSION_SLOTS);
+    private final AtomicLong globalVersion = new AtomicLong();
+    // guarded by itself
+    private final LinkedHashMap<Date, Entry> entries;
+
+    private ScheduleCache(int maxDates, int ttlMillis) {
+        this.maxDates = maxDates;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Date, Entry> eldest) {
+                return size() > ScheduleCache.this.maxDates;
+            }
+        };
+    }
+
+    public static ScheduleCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maxDates > 0;
+    }
+
+    // Returns the cached answer for the day, or null if there is none that is still current
+    public Schedule get(Date d) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(d);
+        }
+        if (entry == null || entry.dateVersion != dateVersions.get(slot(d)) || entry.globalVersion != globalVersion.get()
+                || (ttlMillis > 0 && System.currentTimeMillis() - entry.loadedAt > ttlMillis)) {
+            return null;
+        }
+        return entry.schedule;
+    }
+
+    // Returns the version of the day to pass to put(); read it before reading the answer from the database, so
+    // that a write made while the answer was read makes the answer stale
+    public long[] versionOf(Date d) {
+        return new long[]{dateVersions.get(slot(d)), globalVersion.get()};
+    }
+
+    public void put(Date d, long[] version, Schedule schedule) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(d, new Entry(schedule, version[0], version[1]));
+        }
+    }
+
+    // Makes the cached answer of the day stale, after availability or an appointment of the day changed
+    public void dateChanged(Date d) {
+        dateVersions.incrementAndGet(slot(d));
+    }
+
+    // Makes every cached answer stale, after the vaccines changed
+    public void allChanged() {
+        globalVersion.incrementAndGet();
+    }
+
+    private static int slot(Date d) {
+        return (int) Math.floorMod(d.toLocalDate().toEpochDay(), (long) VERSION_SLOTS);
+    }
+
+    // The rows of a schedule: every available caregiver with every vaccine, as NameDictionary ids, the doses the
+    // database had and, with time slots, the caregiver's free slot bits (two words per row, otherwise null).
+    // Names and time ranges are only turned into text when a row is printed
+    public static class Schedule {
+        private final int[] caregivers;
+        private final int[] vaccines;
+        private final int[] doses;
+        private final long[] freeSlots;
+
+        private Schedule(ScheduleBuilder builder) {
+            this.caregivers = builder.caregivers.toArray();
+            this.vaccines = builder.vaccines.toArray();
+            this.doses = builder.doses.toArray();
+            this.freeSlots = builder.freeSlots == null ? null
+                    : Arrays.copyOf(builder.freeSlots, 2 * caregivers.length);
+        }
+
+        public int size() {
+            return caregivers.length;
+        }
+
+        // The row as search_caregiver_schedule prints it, with the doses the inventory has now
+        public String line(int row) {
+            String vaccine = NameDictionary.VACCINES.name(vaccines[row]);
+            String line = NameDictionary.CAREGIVERS.name(caregivers[row]) + " " + vaccine + " "
+                    + VaccineInventory.getInstance().peekAvailableDoses(vaccine, doses[row]);
+            return freeSlots == null ? line
+                    : line + " " + Slots.describe(new long[]{freeSlots[2 * row], freeSlots[2 * row + 1]});
+        }
+    }
+
+    public static class ScheduleBuilder {
+        private final IntList caregivers = new IntList();
+        private final IntList vaccines = new IntList();
+        private final IntList doses = new IntList();
+        private long[] freeSlots;
+
+        // freeSlots is the caregiver's free slot bitmap, or null without time slots
+        public ScheduleBuilder add(String caregiver, String vaccine, int doses, long[] freeSlots) {
+            if (freeSlots != null) {
+                int row = caregivers.size();
+                if (this.freeSlots == null) {
+                    this.freeSlots = new long[32];
+                } else if (2 * row + 2 > this.freeSlots.length) {
+                    this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+                }
+                this.freeSlots[2 * row] = freeSlots[0];
+                this.freeSlots[2 * row + 1] = freeSlots[1];
+            }
+            caregivers.add(NameDictionary.CAREGIVERS.intern(caregiver));
+            vaccines.add(NameDictionary.VACCINES.intern(vaccine));
+            this.doses.add(doses);
+            return this;
+        }
+
+        public Schedule build() {
+            return new Schedule(this);
+        }
+    }
+
+    private static class Entry {
+        private final Schedule schedule;
+        private final long dateVersion;
+        private final long globalVersion;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Entry(Schedule schedule, long dateVersion, long globalVersion) {
+            this.schedule = schedule;
+            this.dateVersion = dateVersion;
+            this.globalVersion = globalVersion;
+        }
+    }
+}
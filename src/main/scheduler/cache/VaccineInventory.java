@@ -0,0 +1,289 @@
+package scheduler.cache;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ServiceBusyException;
+import scheduler.model.Vaccine;
+import scheduler.util.ErrorLog;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// VaccineInventory keeps the dose count of every vaccine that has been used in memory. Reservations,
+// cancellations and add_doses change the in-memory counter atomically and record the change as a
+// delta; a background thread writes the accumulated deltas to the Vaccines table in one batch
+// ("UPDATE ... SET Doses = Doses + ?"), so concurrent changes are never lost and the count never
+// goes below zero. A delta the table cannot take because another node took the doses first is still
+// applied, clamped at zero, and the in-memory count is corrected by the difference.
+public class VaccineInventory {
+
+    private static final String addDelta = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Doses + ? >= 0;";
+
+    // applies a delta the database could not take in full, clamped at zero
+    private static final String reconcileDelta = "UPDATE Vaccines\n" +
+            "SET Doses = CASE WHEN Doses + ? < 0 THEN 0 ELSE Doses + ? END\n" +
+            "OUTPUT deleted.Doses, inserted.Doses\n" +
+            "WHERE Name = ?;";
+
+    private static final VaccineInventory instance = new VaccineInventory(
+            Util.intSetting("VaccineFlushMillis", 500), Util.intSetting("VaccineRefreshSeconds", 30));
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final long refreshMillis;
+    private final ScheduledExecutorService flusher;
+
+    private VaccineInventory(int flushMillis, int refreshSeconds) {
+        this.refreshMillis = refreshSeconds * 1000L;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vaccine-inventory-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static VaccineInventory getInstance() {
+        return instance;
+    }
+
+    // Returns the number of available doses, or null if the vaccine does not exist
+    public Integer getAvailableDoses(String vaccineName) throws SQLException {
+        Counter counter = load(vaccineName);
+        return counter == null ? null : counter.available.get();
+    }
+
+    // Returns the cached dose count, or the given value if the vaccine has not been loaded yet
+    public int peekAvailableDoses(String vaccineName, int fallback) {
+        Counter counter = counters.get(vaccineName);
+        return counter == null ? fallback : counter.available.get();
+    }
+
+    // Adds doses to a vaccine, creating the vaccine if it does not exist yet
+    public void addDoses(String vaccineName, int num) throws SQLException {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        Counter counter = load(vaccineName);
+        if (counter == null) {
+            synchronized (this) { // only one session may create the vaccine
+                counter = load(vaccineName);
+                if (counter == null) {
+                    Vaccine vaccine = new Vaccine.VaccineBuilder(vaccineName, num).build();
+                    vaccine.saveToDB();
+                    counters.computeIfAbsent(vaccineName, name -> new Counter(num));
+                    return;
+                }
+            }
+        }
+        counter.available.addAndGet(num);
+        counter.pending.addAndGet(num);
+    }
+
+    // Takes one dose if any is left; returns false if the vaccine does not exist or has no doses
+    public boolean tryReserveDose(String vaccineName) throws SQLException {
+        Counter counter = load(vaccineName);
+        if (counter == null) {
+            return false;
+        }
+        int current;
+        do {
+            current = counter.available.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!counter.available.compareAndSet(current, current - 1));
+        counter.pending.decrementAndGet();
+        return true;
+    }
+
+    // Gives back a dose taken by a reservation that was canceled or could not be completed
+    public void releaseDose(String vaccineName) throws SQLException {
+        Counter counter = load(vaccineName);
+        if (counter == null) {
+            return;
+        }
+        counter.available.incrementAndGet();
+        counter.pending.incrementAndGet();
+    }
+
+    // Gives back doses of several canceled appointments at once; like releaseDose the change is saved with the next
+    // flush
+    public void releaseDoses(String vaccineName, int num) {
+        Counter counter = counters.get(vaccineName);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(vaccineName, name -> new Counter(0));
+            counter.loadedAt = 0; // the count is read from the database on next use, with the delta added
+        }
+        counter.available.addAndGet(num);
+        counter.pending.addAndGet(num);
+    }
+
+    // Adds doses that a committed transaction has already added to the Vaccines table, so only the in-memory count
+    // changes and the base moves with it, or the next reload would add them again; vaccines that are not loaded
+    // will read the new count from the database
+    public synchronized void dosesRestored(String vaccineName, int num) {
+        Counter counter = counters.get(vaccineName);
+        if (counter != null) {
+            counter.available.addAndGet(num);
+            counter.base += num;
+        }
+    }
+
+    // Writes every pending delta to the database in one batch
+    public synchronized void flush() throws SQLException {
+        List<String> names = new ArrayList<>();
+        List<Integer> deltas = new ArrayList<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            int delta = entry.getValue().pending.getAndSet(0);
+            if (delta != 0) {
+                names.add(entry.getKey());
+                deltas.add(delta);
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            PreparedStatement statement = con.prepareStatement(addDelta);
+            for (int i = 0; i < names.size(); i++) {
+                statement.setInt(1, deltas.get(i));
+                statement.setString(2, names.get(i));
+                statement.setInt(3, deltas.get(i));
+                statement.addBatch();
+            }
+            int[] updated = statement.executeBatch();
+            for (int i = 0; i < updated.length; i++) {
+                Counter counter = counters.get(names.get(i));
+                if (updated[i] != 0) {
+                    if (counter != null) {
+                        counter.base += deltas.get(i);
+                    }
+                } else if (counter != null) {
+                    // another node took the doses or removed the vaccine; the bookings behind the delta are
+                    // confirmed already, so apply it anyway
+                    try {
+                        reconcile(con, names.get(i), deltas.get(i), counter);
+                    } catch (SQLException e) {
+                        counter.pending.addAndGet(deltas.get(i)); // not applied, the next flush retries it
+                        ErrorLog.report("Error occurred when reconciling vaccine " + names.get(i) + ", will retry", e);
+                    }
+                }
+            }
+        } catch (SQLException | ServiceBusyException e) {
+            // keep the deltas so the next flush retries them
+            for (int i = 0; i < names.size(); i++) {
+                Counter counter = counters.get(names.get(i));
+                if (counter != null) {
+                    counter.pending.addAndGet(deltas.get(i));
+                }
+            }
+            throw new SQLException(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Applies a delta the database refused, clamping the doses at zero, and corrects the in-memory count by
+    // the part that could not be applied. Amounts that became pending meanwhile stay pending
+    private void reconcile(Connection con, String vaccineName, int delta, Counter counter) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(reconcileDelta);
+        statement.setInt(1, delta);
+        statement.setInt(2, delta);
+        statement.setString(3, vaccineName);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            ErrorLog.report("Vaccine " + vaccineName + " was removed, dropping " + delta + " unsaved doses");
+            counters.remove(vaccineName, counter);
+            return;
+        }
+        int before = resultSet.getInt(1);
+        int after = resultSet.getInt(2);
+        ErrorLog.report("Vaccine " + vaccineName + " had " + before + " doses, could not apply " + delta
+                + "; now " + after);
+        // memory assumed base + delta: move it to what the database has now
+        correct(counter, after - (counter.base + delta));
+        counter.base = after;
+    }
+
+    // Flushes the remaining deltas and stops the background thread
+    public void shutdown() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            ErrorLog.report("Error occurred when saving vaccine doses, will retry", e);
+        }
+    }
+
+    // Read-through: loads the vaccine on first use, and reloads it once it is older than the refresh
+    // interval so that changes made by other nodes become visible. Reloads are serialized with flush(), so a
+    // delta is never half written while the count is compared with the database
+    private Counter load(String vaccineName) throws SQLException {
+        Counter counter = counters.get(vaccineName);
+        if (counter != null && System.currentTimeMillis() - counter.loadedAt < refreshMillis) {
+            return counter;
+        }
+        synchronized (this) {
+            counter = counters.get(vaccineName);
+            if (counter != null && System.currentTimeMillis() - counter.loadedAt < refreshMillis) {
+                return counter;
+            }
+            Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            if (vaccine == null) {
+                if (counter != null) {
+                    counters.remove(vaccineName, counter);
+                }
+                return null;
+            }
+            if (counter == null) {
+                Counter loaded = new Counter(vaccine.getAvailableDoses());
+                counters.put(vaccineName, loaded);
+                return loaded;
+            }
+            // only the change since the last look is applied, so concurrent reservations are kept and the
+            // unflushed deltas stay counted
+            correct(counter, vaccine.getAvailableDoses() - counter.base);
+            counter.base = vaccine.getAvailableDoses();
+            counter.loadedAt = System.currentTimeMillis();
+            return counter;
+        }
+    }
+
+    // Adds the correction to the available doses without going below zero
+    private static void correct(Counter counter, int correction) {
+        int current;
+        do {
+            current = counter.available.get();
+        } while (!counter.available.compareAndSet(current, Math.max(0, current + correction)));
+    }
+
+    private static class Counter {
+        private final AtomicInteger available;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile long loadedAt = System.currentTimeMillis();
+        // the doses the database had when it was last read or written, guarded by the inventory
+        private int base;
+
+        private Counter(int available) {
+            this.available = new AtomicInteger(available);
+            this.base = available;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package scheduler.db;
+
+import scheduler.cache.AppointmentCache;
+import scheduler.util.ErrorLog;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Archiver moves appointments, cancellations and availability older than the retention window out of the hot tables into
+// their *Archive copies, so the tables every command reads stay small. Rows are moved in small batches, each
+// a single DELETE ... OUTPUT INTO statement (and so its own short transaction) that skips rows locked by
+// live commands, with a pause between batches. Every shard archives its own days. The users whose appointments
+// were moved get their appointment versions bumped in the same transaction (on the home shard right after it for
+// other shards), so cached show_appointments lists do not keep archived appointments.
+public class Archiver {
+
+    // also returns the users of the moved appointments
+    private static final String moveAppointments = "DELETE TOP (?) FROM Appointments WITH (READPAST)\n" +
+            "OUTPUT deleted.id, deleted.Time, deleted.PatientName, deleted.CaregiverName, deleted.VaccineName," +
+            " deleted.Slot\n" +
+            "INTO AppointmentsArchive (id, Time, PatientName, CaregiverName, VaccineName, Slot)\n" +
+            "OUTPUT deleted.PatientName, deleted.CaregiverName\n" +
+            "WHERE Time < ?;";
+
+    private static final String[] moveStatements = {
+            "DELETE TOP (?) FROM Availabilities WITH (READPAST)\n" +
+                    "OUTPUT deleted.Time, deleted.Username, deleted.Available\n" +
+                    "INTO AvailabilitiesArchive (Time, Username, Available)\n" +
+                    "WHERE Time < ?;",
+            "DELETE TOP (?) FROM AvailabilitySlots WITH (READPAST)\n" +
+                    "OUTPUT deleted.Time, deleted.Username, deleted.Slots0, deleted.Slots1\n" +
+                    "INTO AvailabilitySlotsArchive (Time, Username, Slots0, Slots1)\n" +
+                    "WHERE Time < ?;",
+            "DELETE TOP (?) FROM Cancellations WITH (READPAST)\n" +
+                    "OUTPUT deleted.id, deleted.Time, deleted.PatientName, deleted.CaregiverName, deleted.VaccineName," +
+                    " deleted.Slot, deleted.CanceledAt\n" +
+                    "INTO CancellationsArchive (id, Time, PatientName, CaregiverName, VaccineName, Slot, CanceledAt)\n" +
+                    "WHERE Time < ?;"};
+
+    private static final int batchSize = Util.intSetting("ArchiveBatchSize", 500);
+    private static final int pauseMillis = Util.intSetting("ArchivePauseMillis", 50);
+
+    // the caregivers allowed to run archive by hand, from the comma-separated ArchiveAdmins; nobody if it is unset,
+    // since archiving moves the rows of every user
+    private static final Set<String> admins = admins(System.getenv("ArchiveAdmins"));
+
+    private static ScheduledExecutorService background = null;
+
+    private Archiver() {
+    }
+
+    // Starts archiving in the background every ArchiveIntervalMinutes if ArchiveRetentionDays is set
+    public static synchronized void startBackground() {
+        int retentionDays = Util.intSetting("ArchiveRetentionDays", 0);
+        if (retentionDays <= 0 || background != null) {
+            return;
+        }
+        int interval = Util.intSetting("ArchiveIntervalMinutes", 60);
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                archive(retentionDays);
+            } catch (SQLException | ServiceBusyException e) {
+                ErrorLog.report("Error occurred when archiving", e);
+            }
+        }, 1, interval, TimeUnit.MINUTES);
+    }
+
+    public static synchronized void stopBackground() {
+        if (background != null) {
+            background.shutdownNow();
+            background = null;
+        }
+    }
+
+    public static boolean isAdmin(String caregiver) {
+        return admins.contains(caregiver);
+    }
+
+    private static Set<String> admins(String setting) {
+        Set<String> admins = new LinkedHashSet<>();
+        if (setting != null) {
+            for (String name : setting.split(",")) {
+                if (!name.isBlank()) {
+                    admins.add(name.trim());
+                }
+            }
+        }
+        return admins;
+    }
+
+    // Moves every row dated more than retentionDays ago to the archive tables and returns the number of rows moved
+    public static long archive(int retentionDays) throws SQLException {
+        Date cutoff = Date.valueOf(LocalDate.now().minusDays(retentionDays));
+        long moved = 0;
+        for (int shard = 0; shard < ConnectionManager.shardCount(); shard++) {
+            moved += moveAll(shard, moveAppointments, cutoff);
+            for (String move : moveStatements) {
+                moved += moveAll(shard, move, cutoff);
+            }
+        }
+        return moved;
+    }
+
+    private static long moveAll(int shard, String move, Date cutoff) throws SQLException {
+        long moved = 0;
+        while (true) {
+            int batch = 0;
+            Set<String> patients = new LinkedHashSet<>();
+            Set<String> caregivers = new LinkedHashSet<>();
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createShardConnection(shard);
+            try {
+                PreparedStatement statement = con.prepareStatement(move);
+                statement.setInt(1, batchSize);
+                statement.setDate(2, cutoff);
+                if (!moveAppointments.equals(move)) {
+                    batch = statement.executeUpdate();
+                } else {
+                    con.setAutoCommit(false);
+                    try {
+                        ResultSet resultSet = statement.executeQuery();
+                        while (resultSet.next()) {
+                            batch++;
+                            patients.add(resultSet.getString("PatientName"));
+                            caregivers.add(resultSet.getString("CaregiverName"));
+                        }
+                        if (shard == 0) {
+                            bumpVersions(con, patients, caregivers);
+                        }
+                        con.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        con.rollback();
+                        throw e;
+                    }
+                }
+            } finally {
+                cm.closeConnection();
+            }
+            if (shard != 0 && !patients.isEmpty()) {
+                ConnectionManager home = new ConnectionManager();
+                try {
+                    bumpVersions(home.createConnection(), patients, caregivers);
+                } finally {
+                    home.closeConnection();
+                }
+            }
+            moved += batch;
+            if (batch < batchSize) {
+                return moved;
+            }
+            try {
+                Thread.sleep(pauseMillis); // give live commands room between batches
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return moved;
+            }
+        }
+    }
+
+    // Bumps the appointment versions of the users whose appointments were archived and drops their cached lists
+    private static void bumpVersions(Connection con, Set<String> patients, Set<String> caregivers)
+            throws SQLException {
+        if (patients.isEmpty()) {
+            return;
+        }
+        AppointmentCache.bumpVersions(con, AppointmentCache.PATIENT, patients);
+        AppointmentCache.bumpVersions(con, AppointmentCache.CAREGIVER, caregivers);
+        for (String patient : patients) {
+            AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, patient);
+        }
+        for (String caregiver : caregivers) {
+            AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, caregiver);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package scheduler.db;
+
+import scheduler.util.ErrorLog;
+import scheduler.util.Util;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+// CircuitBreaker stops sending work to a database that is failing or stalling. It remembers the outcome of
+// the last BreakerWindow (default 20) calls; once at least BreakerMinCalls (default 10) are known and
+// BreakerFailurePercent (default 50) of them failed, or BreakerSlowPercent (default 80) took longer than
+// BreakerSlowMillis (default 5000), the breaker opens and every borrow fails right away for
+// BreakerOpenSeconds (default 10). Then it lets a single probe through (half-open): if the probe succeeds the
+// breaker closes again, otherwise it stays open for another period. Only connection problems and timeouts
+// count as failures, not errors the statement itself caused such as key violations. CircuitBreaker=0 turns
+// breaking off.
+class CircuitBreaker {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte OK = 0;
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private static final boolean enabled = Util.intSetting("CircuitBreaker", 1) != 0;
+    private static final int window = Math.max(1, Util.intSetting("BreakerWindow", 20));
+    private static final int minCalls = Util.intSetting("BreakerMinCalls", 10);
+    private static final int failurePercent = Util.intSetting("BreakerFailurePercent", 50);
+    private static final int slowPercent = Util.intSetting("BreakerSlowPercent", 80);
+    private static final long slowNanos = TimeUnit.MILLISECONDS.toNanos(Util.intSetting("BreakerSlowMillis", 5000));
+    private static final long openMillis = TimeUnit.SECONDS.toMillis(Util.intSetting("BreakerOpenSeconds", 10));
+
+    private final String name;
+
+    // guarded by this
+    private final byte[] outcomes = new byte[window];
+    private int next = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private int slow = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private long probeStartedAt = 0;
+
+    CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Throws ServiceBusyException if no work may be sent to the database right now
+    synchronized void acquire() {
+        if (!enabled || state == State.CLOSED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            probeStartedAt = 0;
+        }
+        // one probe at a time; a probe that never reported back is replaced after another open period
+        if (state == State.HALF_OPEN && (probeStartedAt == 0 || now - probeStartedAt >= openMillis)) {
+            probeStartedAt = now;
+            return;
+        }
+        throw new ServiceBusyException("Database " + name + " is unavailable");
+    }
+
+    // Records a call that completed, or failed with the given exception (null if it did not fail)
+    void record(long nanos, SQLException failure) {
+        if (!enabled) {
+            return;
+        }
+        if (failure != null && !isUnavailable(failure)) {
+            failure = null; // the database answered, so it is available
+        }
+        record(failure != null ? FAILED : nanos >= slowNanos ? SLOW : OK);
+    }
+
+    // Records that a connection could not be opened
+    void recordConnectFailure() {
+        if (enabled) {
+            record(FAILED);
+        }
+    }
+
+    private synchronized void record(byte outcome) {
+        if (state == State.HALF_OPEN) {
+            if (outcome == OK) {
+                close();
+            } else {
+                open();
+            }
+            return;
+        }
+        if (calls == window) {
+            forget(outcomes[next]);
+        } else {
+            calls++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % window;
+        if (outcome == FAILED) {
+            failures++;
+        } else if (outcome == SLOW) {
+            slow++;
+        }
+        if (state == State.CLOSED && calls >= minCalls
+                && (failures * 100 >= failurePercent * calls || slow * 100 >= slowPercent * calls)) {
+            open();
+        }
+    }
+
+    private void forget(byte outcome) {
+        if (outcome == FAILED) {
+            failures--;
+        } else if (outcome == SLOW) {
+            slow--;
+        }
+    }
+
+    private void open() {
+        if (state != State.OPEN) {
+            ErrorLog.report("Database " + name + " is failing, rejecting commands for " + openMillis / 1000
+                    + " seconds");
+        }
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+        failures = 0;
+        slow = 0;
+    }
+
+    // Connection errors and timeouts mean the database is not answering
+    private static boolean isUnavailable(SQLException e) {
+        if (e instanceof SQLTimeoutException || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("08") || state.equals("HYT00") || state.equals("HYT01")
+                || state.equals("HY008"));
+    }
+}
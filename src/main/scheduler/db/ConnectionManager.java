@@ -1,41 +1,234 @@
 package scheduler.db;
 
+import scheduler.util.ErrorLog;
+import scheduler.util.Util;
+
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
+// ConnectionManager hands out pooled connections. The primary database is the home shard (0): it holds the
+// accounts and vaccines, and all availability and appointments unless the storage is sharded by date.
+// ShardURLs adds the databases of shards 1..n and ShardMap (see ShardMap) says which days they store.
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
+
+    // the primary takes every write; ConnectionURL overrides the Azure url (e.g. a local instance)
+    private static final String connectionUrl = urlFor("ConnectionURL", "Server", "DBName");
+    // the optional replica only serves read-only commands; it is unused when neither variable is set
+    private static final String replicaUrl = urlFor("ReplicaConnectionURL", "ReplicaServer", "ReplicaDBName");
+
+    // how long (in seconds) the reads of a session stay on the primary after the session wrote something, so
+    // that a user never reads a replica that has not caught up with their own change yet; it has to be longer
+    // than the replica's lag
+    private static final long replicaStalenessMillis = 1000L * Util.intSetting("ReplicaMaxStalenessSeconds", 5);
+    private static final int maxIdleConnections = Util.intSetting("MaxIdleConnections", 4);
+
+    private static final ConnectionPool primaryPool =
+            new ConnectionPool(connectionUrl, userName, userPass, maxIdleConnections);
+    private static final ConnectionPool replicaPool = replicaUrl == null ? null :
+            new ConnectionPool(replicaUrl, userName, userPass, maxIdleConnections);
+
+    private static final ConnectionPool[] shardPools = shardPools(System.getenv("ShardURLs"));
+    private static final ShardMap shardMap = ShardMap.parse(System.getenv("ShardMap"), shardPools.length);
+
+    // statements that are reads for sure: a single SELECT that does not write into a table; everything else
+    // (INSERT, UPDATE, DELETE, MERGE, batches starting with DECLARE, ...) counts as a write
+    private static final Pattern read = Pattern.compile("^\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern writeWord = Pattern.compile(
+            "\\b(INSERT|UPDATE|DELETE|MERGE|INTO|EXEC|EXECUTE|TRUNCATE)\\b", Pattern.CASE_INSENSITIVE);
 
     private Connection con = null;
 
-    public ConnectionManager() {
+    // the driver is loaded once, when the class is first used; logins give up after
+    // DatabaseConnectTimeoutSeconds (default 5) instead of the driver's default
+    static {
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
             System.out.println(e.toString());
         }
+        DriverManager.setLoginTimeout(connectTimeoutSeconds());
     }
 
+    public ConnectionManager() {
+    }
+
+    // Connection to the primary, used for every write and for reads that must be up to date. Throws
+    // ServiceBusyException if the database cannot be reached or is too busy right now
     public Connection createConnection() {
-        try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
-        } catch (SQLException e) {
-            e.printStackTrace();
+        con = borrow(primaryPool);
+        return con;
+    }
+
+    // Connection to the shard that stores the availability and appointments of the day
+    public Connection createConnection(Date d) {
+        return createShardConnection(shardFor(d));
+    }
+
+    // Connection for read-only commands about the day; only the home shard has a replica
+    public Connection createReadConnection(Date d) {
+        int shard = shardFor(d);
+        return shard == 0 ? createReadConnection() : createShardConnection(shard);
+    }
+
+    // Connection to the given shard, 0 being the primary
+    public Connection createShardConnection(int shard) {
+        if (shard == 0) {
+            return createConnection();
         }
+        con = borrow(shardPools[shard]);
         return con;
     }
 
+    // Connection for read-only commands: goes to the replica if one is configured and the session of this
+    // thread has not written within the staleness window, and falls back to the primary if the replica is down
+    public Connection createReadConnection() {
+        ReadSession session = ReadSession.current();
+        if (replicaPool == null || (session != null && session.wroteWithin(replicaStalenessMillis))) {
+            return createConnection();
+        }
+        try {
+            con = borrow(replicaPool);
+            return con;
+        } catch (ServiceBusyException e) {
+            ErrorLog.report("Read replica unavailable, using the primary database");
+        }
+        return createConnection();
+    }
+
     public void closeConnection() {
+        if (con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    // Opens connections to the primary (and the replica, if configured) until the given number are idle, so the
+    // first commands do not have to log in; returns the number of connections that are ready
+    public static int prefill(int connections) {
+        int ready = primaryPool.prefill(connections);
+        if (replicaPool != null) {
+            replicaPool.prefill(connections);
+        }
+        for (int shard = 1; shard < shardPools.length; shard++) {
+            shardPools[shard].prefill(connections);
+        }
+        return ready;
+    }
+
+    // The number of shards, 1 when the storage is not sharded
+    public static int shardCount() {
+        return shardPools.length;
+    }
+
+    public static boolean isSharded() {
+        return shardPools.length > 1;
+    }
+
+    // The shard that stores the availability and appointments of the day
+    public static int shardFor(Date d) {
+        return shardPools.length == 1 ? 0 : shardMap.shardFor(d.toLocalDate());
+    }
+
+    // The shard that stores the appointment with the given id
+    public static int shardOfAppointment(int id) {
+        int shard = ShardMap.shardOfAppointment(id);
+        // ids outside every shard's block cannot match an appointment; look them up on the home shard
+        return shard < 0 || shard >= shardPools.length ? 0 : shard;
+    }
+
+    // Closes the idle pooled connections
+    public static void shutdown() {
+        primaryPool.close();
+        if (replicaPool != null) {
+            replicaPool.close();
+        }
+        for (int shard = 1; shard < shardPools.length; shard++) {
+            shardPools[shard].close();
+        }
+    }
+
+    // Called for every statement prepared on a pooled connection; writes start the staleness window of the
+    // session of this thread
+    static void noteStatement(String sql) {
+        ReadSession session = ReadSession.current();
+        if (session != null && isWrite(sql)) {
+            session.wrote();
+        }
+    }
+
+    static boolean isWrite(String sql) {
+        return !read.matcher(sql).find() || writeWord.matcher(sql).find();
+    }
+
+    private static Connection borrow(ConnectionPool pool) {
+        try {
+            return pool.borrow();
+        } catch (SQLException e) {
+            throw new ServiceBusyException("Could not connect to the database", e);
+        }
+    }
+
+    private static int connectTimeoutSeconds() {
+        return Util.intSetting("DatabaseConnectTimeoutSeconds", 5);
+    }
+
+    // The pools of every shard; the first is the primary pool
+    private static ConnectionPool[] shardPools(String urls) {
+        List<ConnectionPool> pools = new ArrayList<>();
+        pools.add(primaryPool);
+        if (urls != null) {
+            for (String url : urls.split(",")) {
+                if (!url.isBlank()) {
+                    pools.add(new ConnectionPool(withStatementCache(url.trim()), userName, userPass,
+                            maxIdleConnections));
+                }
+            }
+        }
+        return pools.toArray(new ConnectionPool[0]);
+    }
+
+    private static String urlFor(String urlVariable, String serverVariable, String dbVariable) {
+        String url = System.getenv(urlVariable);
+        if (url != null) {
+            return withStatementCache(url);
+        }
+        String server = System.getenv(serverVariable);
+        if (server == null && !serverVariable.equals("Server")) {
+            return null;
+        }
+        String database = System.getenv(dbVariable);
+        if (database == null) {
+            database = System.getenv("DBName");
+        }
+        return withStatementCache("jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + database);
+    }
+
+    // Turns on the SQL Server driver's prepared statement cache, so a statement prepared once on a pooled
+    // connection is not prepared again by later commands, and its login timeout
+    private static String withStatementCache(String url) {
+        if (!url.startsWith("jdbc:sqlserver:")) {
+            return url;
+        }
+        if (!url.contains("statementPoolingCacheSize")) {
+            url += ";disableStatementPooling=false;statementPoolingCacheSize="
+                    + Util.intSetting("StatementCacheSize", 64);
+        }
+        if (!url.contains("loginTimeout")) {
+            url += ";loginTimeout=" + connectTimeoutSeconds();
+        }
+        return url;
+    }
 }
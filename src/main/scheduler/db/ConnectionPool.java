@@ -0,0 +1,269 @@
+package scheduler.db;
+
+import scheduler.jfr.ConnectionEvent;
+import scheduler.jfr.StatementEvent;
+import scheduler.util.Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ConnectionPool keeps a small number of idle physical connections to one database so that every
+// command does not have to pay for a new login. Connections handed out by borrow() are proxies:
+// calling close() on them closes the statements created through them and returns the physical
+// connection to the pool instead of closing it. At most MaxConnections (default 64) connections are borrowed
+// at a time; borrow() waits up to DatabaseBorrowTimeoutMillis (default 2000) for one to come back. Every
+// statement gets a DatabaseQueryTimeoutSeconds (default 15) timeout, and prepared statements are wrapped so
+// that their outcomes feed the pool's CircuitBreaker and slow ones get logged (see StatementLog). Borrows and
+// statement executions are recorded as Java Flight Recorder events (see scheduler.jfr) while a recording is on.
+public class ConnectionPool {
+
+    // idle connections are re-validated with a round trip only if they have been unused this long
+    private static final long VALIDATE_AFTER_MILLIS = 30_000;
+
+    private static final int maxConnections = Util.intSetting("MaxConnections", 64);
+    private static final long borrowTimeoutMillis = Util.intSetting("DatabaseBorrowTimeoutMillis", 2000);
+    private static final int queryTimeoutSeconds = Util.intSetting("DatabaseQueryTimeoutSeconds", 15);
+
+    private final String url;
+    private final String name;
+    private final String userName;
+    private final String userPass;
+    private final int maxIdle;
+
+    private final ConcurrentLinkedDeque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final Semaphore borrowed = new Semaphore(maxConnections);
+    private final CircuitBreaker breaker;
+
+    public ConnectionPool(String url, String userName, String userPass, int maxIdle) {
+        this.url = url;
+        this.name = url.replaceAll(";.*", "");
+        this.userName = userName;
+        this.userPass = userPass;
+        this.maxIdle = maxIdle;
+        this.breaker = new CircuitBreaker(name);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    // Hands out a pooled connection, opening a new physical connection if none is idle. Throws
+    // ServiceBusyException if the circuit breaker is open or every connection stays borrowed for too long
+    public Connection borrow() throws SQLException {
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
+        try {
+            breaker.acquire();
+            try {
+                if (!borrowed.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new ServiceBusyException("No database connection became free in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceBusyException("Interrupted while waiting for a database connection");
+            }
+        } catch (ServiceBusyException e) {
+            event.busy = true;
+            commit(event);
+            throw e;
+        }
+        try {
+            IdleConnection candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (isUsable(candidate)) {
+                    return wrap(candidate.connection);
+                }
+                closeQuietly(candidate.connection);
+            }
+            event.opened = true;
+            return wrap(open());
+        } catch (SQLException | RuntimeException e) {
+            borrowed.release();
+            throw e;
+        } finally {
+            commit(event);
+        }
+    }
+
+    // Opens new connections until the given number are idle; returns the number of idle connections
+    public int prefill(int connections) {
+        int target = Math.min(connections, maxIdle);
+        while (idleCount.get() < target) {
+            Connection physical;
+            try {
+                physical = open();
+            } catch (SQLException e) {
+                System.err.println("Could not open a connection to " + name + ": " + e.getMessage());
+                break;
+            }
+            idleCount.incrementAndGet();
+            idle.offerLast(new IdleConnection(physical));
+        }
+        return idleCount.get();
+    }
+
+    // Closes every idle connection, used when the application shuts down
+    public void close() {
+        IdleConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            closeQuietly(candidate.connection);
+        }
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    // The url without its properties, which may contain credentials
+    String getName() {
+        return name;
+    }
+
+    private void commit(ConnectionEvent event) {
+        if (event.shouldCommit()) {
+            event.database = name;
+            event.command = StatementLog.currentCommand();
+            event.commit();
+        }
+    }
+
+    private Connection open() throws SQLException {
+        try {
+            return DriverManager.getConnection(url, userName, userPass);
+        } catch (SQLException e) {
+            breaker.recordConnectFailure();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(IdleConnection candidate) {
+        try {
+            if (candidate.connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - candidate.idleSince < VALIDATE_AFTER_MILLIS) {
+                return true;
+            }
+            return candidate.connection.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(Connection physical, List<Statement> statements) {
+        borrowed.release();
+        for (Statement statement : statements) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // the statement is unusable anyway, nothing else to do
+            }
+        }
+        try {
+            if (physical.isClosed()) {
+                return;
+            }
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            closeQuietly(physical);
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            closeQuietly(physical);
+            return;
+        }
+        idle.offerFirst(new IdleConnection(physical));
+    }
+
+    private Connection wrap(Connection physical) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new PooledHandler(physical));
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away, nothing else to do
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    // Forwards everything to the physical connection except close(), and remembers the statements
+    // created so they can be closed when the connection goes back to the pool
+    private class PooledHandler implements InvocationHandler {
+        private final Connection physical;
+        private final List<Statement> statements = new ArrayList<>();
+        private boolean released = false;
+
+        private PooledHandler(Connection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (!released) {
+                    released = true;
+                    release(physical, statements);
+                }
+                return null;
+            }
+            if (name.equals("isClosed") && released) {
+                return true;
+            }
+            if (released) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (name.equals("prepareStatement") && args != null && args[0] instanceof String) {
+                ConnectionManager.noteStatement((String) args[0]);
+            }
+            Object result;
+            try {
+                result = method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                ((Statement) result).setQueryTimeout(queryTimeoutSeconds);
+            }
+            if (name.equals("prepareStatement") && result instanceof PreparedStatement && !StatementLog.isLogThread()
+                    && (StatementLog.enabled() || CircuitBreaker.isEnabled() || new StatementEvent().isEnabled())) {
+                result = TimedStatement.wrap((PreparedStatement) result, (String) args[0], ConnectionPool.this);
+            }
+            if (result instanceof Statement) {
+                statements.add((Statement) result);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// DatabaseExecutor owns the threads that run asynchronous database calls. Both the number of threads
+// and the number of queued calls are bounded, so a burst of requests cannot open an unbounded number
+// of connections; calls submitted while the queue is full are rejected right away.
+public class DatabaseExecutor {
+
+    private static final ExecutorService executor = create(
+            Util.intSetting("DatabaseThreads", 8), Util.intSetting("DatabaseQueueSize", 256));
+
+    private DatabaseExecutor() {
+    }
+
+    public static ExecutorService get() {
+        return executor;
+    }
+
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    private static ExecutorService create(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "database-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,35 @@
+package scheduler.db;
+
+// ReadSession remembers when one user session last wrote, so that its reads stay off a replica that may not have
+// caught up with its own changes while other sessions keep reading from the replica. Every Scheduler has one and
+// binds it to the thread that runs its command; asynchronous calls carry it over to the executor thread. Threads
+// without a session (background work) never count as having written.
+public class ReadSession {
+
+    private static final ThreadLocal<ReadSession> current = new ThreadLocal<>();
+
+    private volatile long lastWriteMillis = 0;
+
+    // The session bound to this thread, or null
+    public static ReadSession current() {
+        return current.get();
+    }
+
+    // Binds the session to this thread; null unbinds
+    public static void bind(ReadSession session) {
+        if (session == null) {
+            current.remove();
+        } else {
+            current.set(session);
+        }
+    }
+
+    // Records a write made for the session
+    public void wrote() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    boolean wroteWithin(long millis) {
+        return System.currentTimeMillis() - lastWriteMillis < millis;
+    }
+}
@@ -0,0 +1,16 @@
+package scheduler.db;
+
+// ServiceBusyException is thrown instead of waiting when the database cannot take more work right now: its
+// circuit breaker is open, no pooled connection became free in time, or a connection could not be opened
+public class ServiceBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServiceBusyException(String message) {
+        super(message);
+    }
+
+    public ServiceBusyException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,86 @@
+package scheduler.db;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+// ShardMap assigns every day to a shard. It is read from ShardMap, a comma-separated list of
+// <first day>=<shard> entries such as "2026-01-01=1,2026-07-01=2": a day belongs to the entry with the latest
+// first day on or before it, and days before every entry belong to the home shard 0.
+// Appointment ids must also tell their shard, because cancel only knows the id: every shard numbers its
+// appointments from its own block of ID_BLOCK ids (see create_shard.sql), and a CHECK constraint on every
+// shard fails the insert of an id outside its block rather than let it be looked up on the wrong shard. Ids are
+// ints, so there is room for MAX_SHARDS blocks.
+public class ShardMap {
+
+    public static final int ID_BLOCK = 100_000_000;
+    public static final int MAX_SHARDS = Integer.MAX_VALUE / ID_BLOCK;
+
+    private final LocalDate[] firstDays;
+    private final int[] shards;
+
+    private ShardMap(LocalDate[] firstDays, int[] shards) {
+        this.firstDays = firstDays;
+        this.shards = shards;
+    }
+
+    // Parses the map; throws IllegalArgumentException if an entry is malformed, out of order or names a shard
+    // that does not exist, or if there are more shards than appointment id blocks
+    public static ShardMap parse(String value, int shardCount) {
+        if (shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("At most " + MAX_SHARDS + " shards fit the appointment ids, got "
+                    + shardCount);
+        }
+        List<LocalDate> days = new ArrayList<>();
+        List<Integer> shards = new ArrayList<>();
+        if (value != null && !value.isBlank()) {
+            for (String entry : value.split(",")) {
+                String[] parts = entry.trim().split("=");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid shard map entry: " + entry);
+                }
+                LocalDate day;
+                int shard;
+                try {
+                    day = LocalDate.parse(parts[0].trim());
+                    shard = Integer.parseInt(parts[1].trim());
+                } catch (DateTimeParseException | NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid shard map entry: " + entry);
+                }
+                if (shard < 0 || shard >= shardCount) {
+                    throw new IllegalArgumentException("Shard map entry names an unknown shard: " + entry);
+                }
+                if (!days.isEmpty() && !day.isAfter(days.get(days.size() - 1))) {
+                    throw new IllegalArgumentException("Shard map entries must be in date order: " + entry);
+                }
+                days.add(day);
+                shards.add(shard);
+            }
+        }
+        return new ShardMap(days.toArray(new LocalDate[0]), shards.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    // The shard that stores the availability and appointments of the day
+    public int shardFor(LocalDate day) {
+        int low = 0;
+        int high = firstDays.length - 1;
+        int shard = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstDays[middle].isAfter(day)) {
+                high = middle - 1;
+            } else {
+                shard = shards[middle];
+                low = middle + 1;
+            }
+        }
+        return shard;
+    }
+
+    // The shard that stores the appointment with the given id; ids outside every block give a negative shard
+    // or one of MAX_SHARDS or more
+    public static int shardOfAppointment(int id) {
+        return id / ID_BLOCK;
+    }
+}
@@ -0,0 +1,221 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// StatementLog writes prepared statements that took longer than SlowStatementMillis (default 200) to the file
+// named by SlowStatementLog, with their bind values (redacted), the command that ran them and the time spent
+// executing and fetching. With SlowStatementPlanMillis set, statements slower than that also get their
+// estimated plan (SHOWPLAN_XML) captured on a separate connection, at most once per statement text every
+// SlowStatementPlanIntervalMinutes (default 10). The file is rotated at SlowStatementLogMaxBytes (default
+// 10 MB), keeping SlowStatementLogFiles (default 5) old files. Without SlowStatementLog statements are not
+// wrapped at all.
+public class StatementLog {
+
+    private static final String file = System.getenv("SlowStatementLog");
+    private static final long thresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(Util.intSetting("SlowStatementMillis", 200));
+    private static final long planThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(Util.intSetting("SlowStatementPlanMillis", 0));
+    private static final long planIntervalMillis =
+            TimeUnit.MINUTES.toMillis(Util.intSetting("SlowStatementPlanIntervalMinutes", 10));
+
+    private static final ThreadLocal<String> command = new ThreadLocal<>();
+    private static final Map<String, Long> lastPlans = new ConcurrentHashMap<>();
+
+    // slow statements are written by one background thread; when it falls behind, entries are dropped
+    private static final ThreadPoolExecutor writer = file == null || file.isBlank() ? null
+            : new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000), r -> {
+                Thread t = new Thread(r, "statement-log");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    private static final RotatingFile output = writer == null ? null : new RotatingFile(Paths.get(file),
+            Util.intSetting("SlowStatementLogMaxBytes", 10 * 1024 * 1024),
+            Util.intSetting("SlowStatementLogFiles", 5));
+
+    private static volatile Thread writerThread = null;
+
+    private StatementLog() {
+    }
+
+    public static boolean enabled() {
+        return writer != null;
+    }
+
+    // Remembers the command running on this thread, so slow statements can name it; null clears it
+    public static void setCommand(String name) {
+        if (name == null) {
+            command.remove();
+        } else {
+            command.set(name);
+        }
+    }
+
+    public static String currentCommand() {
+        return command.get();
+    }
+
+    // Statements prepared by the log itself (to capture plans) are not timed
+    static boolean isLogThread() {
+        return writer != null && Thread.currentThread() == writerThread;
+    }
+
+    static boolean isSlow(long nanos) {
+        return writer != null && nanos >= thresholdNanos;
+    }
+
+    // Queues a slow statement for the log; binds are only passed when its plan should be captured
+    static void slow(String sql, String command, long executeNanos, long fetchNanos, long rows, String redactedBinds,
+                     ConnectionPool pool, Object[] binds) {
+        String line = Instant.now() + " slow statement " + millis(executeNanos + fetchNanos) + " ms (execute "
+                + millis(executeNanos) + " ms, fetch " + millis(fetchNanos) + " ms, " + rows + " rows) command="
+                + command + " binds=" + redactedBinds + " sql=" + oneLine(sql);
+        boolean plan = wantsPlan(sql, executeNanos + fetchNanos);
+        writer.execute(() -> {
+            writerThread = Thread.currentThread();
+            output.write(line);
+            if (plan) {
+                output.write(Instant.now() + " plan for sql=" + oneLine(sql) + " " + capturePlan(sql, pool, binds));
+            }
+        });
+    }
+
+    // Plans are only captured for statements over the plan threshold that have not had one captured lately
+    private static boolean wantsPlan(String sql, long nanos) {
+        if (planThresholdNanos <= 0 || nanos < planThresholdNanos) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long last = lastPlans.get(sql);
+        if (last != null && now - last < planIntervalMillis) {
+            return false;
+        }
+        lastPlans.put(sql, now);
+        return true;
+    }
+
+    // Asks the server for the estimated plan; with SHOWPLAN_XML on, the statement is compiled but not run
+    private static String capturePlan(String sql, ConnectionPool pool, Object[] binds) {
+        Connection con = null;
+        try {
+            con = pool.borrow();
+            Statement showplan = con.createStatement();
+            showplan.execute("SET SHOWPLAN_XML ON");
+            try {
+                PreparedStatement statement = con.prepareStatement(sql);
+                for (int i = 1; i < binds.length; i++) {
+                    statement.setObject(i, binds[i]);
+                }
+                ResultSet resultSet = statement.executeQuery();
+                return resultSet.next() ? oneLine(resultSet.getString(1)) : "(no plan)";
+            } finally {
+                showplan.execute("SET SHOWPLAN_XML OFF");
+            }
+        } catch (SQLException | ServiceBusyException e) {
+            return "(plan unavailable: " + e.getMessage() + ")";
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    // the connection is returned or thrown away either way
+                }
+            }
+        }
+    }
+
+    // Shows numbers, dates and nulls as they are; text keeps its first character and length, binary its length
+    static String redact(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof java.util.Date) {
+            return value.toString();
+        }
+        if (value instanceof byte[]) {
+            return "<" + ((byte[]) value).length + " bytes>";
+        }
+        String text = value.toString();
+        return text.isEmpty() ? "''" : "'" + text.charAt(0) + "***'(" + text.length() + ")";
+    }
+
+    private static String oneLine(String text) {
+        return text == null ? "null" : text.replaceAll("\\s+", " ").trim();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    // Appends lines to a file, moving it to <file>.1 (and older files one number up) when it gets too large
+    private static class RotatingFile {
+        private final Path path;
+        private final long maxBytes;
+        private final int files;
+        private BufferedWriter out = null;
+        private long size = 0;
+
+        private RotatingFile(Path path, long maxBytes, int files) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.files = files;
+        }
+
+        private void write(String line) {
+            try {
+                if (out == null) {
+                    out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                    size = Files.size(path);
+                }
+                if (size > 0 && size + line.length() + 1 > maxBytes) {
+                    rotate();
+                }
+                out.write(line);
+                out.newLine();
+                out.flush();
+                size += line.length() + 1;
+            } catch (IOException e) {
+                System.out.println("Could not write the slow statement log: " + e.getMessage());
+            }
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            for (int i = files - 1; i >= 1; i--) {
+                Path older = Paths.get(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (files > 0) {
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package scheduler.db;
+
+import scheduler.jfr.StatementEvent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+// TimedStatement times the executions of one prepared statement and the fetching of their results, reports
+// every execution to the circuit breaker of its pool, records it as a StatementEvent for Java Flight Recorder and
+// hands slow ones to the StatementLog. An execution is finished when its result set is read to the end or closed,
+// when the statement runs again or when it is closed.
+class TimedStatement implements InvocationHandler {
+
+    private final PreparedStatement statement;
+    private final String sql;
+    private final ConnectionPool pool;
+
+    // index 0 is unused, so parameter indexes can be used directly
+    private Object[] binds = new Object[8];
+    private int bindCount = 0;
+
+    private boolean running = false;
+    private String command;
+    private long executeNanos;
+    private long fetchNanos;
+    private long rows;
+    private boolean failed;
+    private StatementEvent event;
+
+    private TimedStatement(PreparedStatement statement, String sql, ConnectionPool pool) {
+        this.statement = statement;
+        this.sql = sql;
+        this.pool = pool;
+    }
+
+    static PreparedStatement wrap(PreparedStatement statement, String sql, ConnectionPool pool) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new TimedStatement(statement, sql, pool));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+            bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+        } else if (name.equals("clearParameters")) {
+            Arrays.fill(binds, null);
+            bindCount = 0;
+        } else if (name.equals("close")) {
+            finish();
+        }
+        if (!name.startsWith("execute")) {
+            return call(method, args);
+        }
+
+        finish();
+        command = StatementLog.currentCommand();
+        executeNanos = 0;
+        fetchNanos = 0;
+        rows = 0;
+        failed = false;
+        running = true;
+        event = new StatementEvent();
+        event.begin();
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = call(method, args);
+        } catch (SQLException e) {
+            executeNanos = System.nanoTime() - start;
+            pool.getBreaker().record(executeNanos, e);
+            failed = true;
+            finish();
+            throw e;
+        } finally {
+            executeNanos = System.nanoTime() - start;
+        }
+        pool.getBreaker().record(executeNanos, null);
+        if (result instanceof ResultSet) {
+            return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    new TimedResultSet((ResultSet) result));
+        }
+        if (result instanceof Integer) {
+            rows = (Integer) result;
+        }
+        finish();
+        return result;
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void bind(int index, Object value) {
+        if (index <= 0) {
+            return;
+        }
+        if (index >= binds.length) {
+            binds = Arrays.copyOf(binds, Math.max(index + 1, binds.length * 2));
+        }
+        binds[index] = value;
+        bindCount = Math.max(bindCount, index);
+    }
+
+    private void finish() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (event.shouldCommit()) {
+            event.kind = StatementEvent.kindOf(sql);
+            event.sql = sql;
+            event.command = command;
+            event.database = pool.getName();
+            event.rows = rows;
+            event.executeTime = executeNanos;
+            event.failed = failed;
+            event.commit();
+        }
+        event = null;
+        if (!StatementLog.isSlow(executeNanos + fetchNanos)) {
+            return;
+        }
+        StringBuilder redacted = new StringBuilder("[");
+        for (int i = 1; i <= bindCount; i++) {
+            if (i > 1) {
+                redacted.append(", ");
+            }
+            redacted.append(i).append(": ").append(StatementLog.redact(binds[i]));
+        }
+        redacted.append(']');
+        StatementLog.slow(sql, command, executeNanos, fetchNanos, rows, redacted.toString(), pool,
+                Arrays.copyOf(binds, bindCount + 1));
+    }
+
+    // Adds the time spent in next() to the execution that produced the result set
+    private class TimedResultSet implements InvocationHandler {
+        private final ResultSet resultSet;
+
+        private TimedResultSet(ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                finish();
+            }
+            if (!name.equals("next")) {
+                try {
+                    return method.invoke(resultSet, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            long start = System.nanoTime();
+            boolean more;
+            try {
+                more = resultSet.next();
+            } finally {
+                fetchNanos += System.nanoTime() - start;
+            }
+            if (more) {
+                rows++;
+            } else {
+                finish();
+            }
+            return more;
+        }
+    }
+}
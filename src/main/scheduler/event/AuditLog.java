@@ -0,0 +1,64 @@
+package scheduler.event;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+// AuditLog appends one line per event to the file named by the AuditLog environment variable. It subscribes
+// with KEEP backpressure, so no event is overwritten before it is logged (while the log is a whole ring behind,
+// new events are rejected instead), and flushes whenever it has caught up with the bus.
+public class AuditLog implements EventConsumer {
+
+    private final BufferedWriter writer;
+
+    private AuditLog(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    // Subscribes an audit log to the bus if the AuditLog environment variable names a file
+    public static void start() {
+        String file = System.getenv("AuditLog");
+        if (file == null || file.isBlank()) {
+            return;
+        }
+        Path path = Paths.get(file);
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            EventBus.getInstance().subscribe("audit", new AuditLog(writer), EventBus.Backpressure.KEEP);
+        } catch (IOException e) {
+            System.out.println("Could not open the audit log " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onEvent(Event event, boolean endOfBatch) {
+        try {
+            writer.write(Instant.ofEpochMilli(event.getTimeMillis()).toString());
+            writer.write(' ');
+            writer.write(Long.toString(event.getSequence()));
+            writer.write(' ');
+            writer.write(event.toString());
+            writer.newLine();
+            if (endOfBatch) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the audit log", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the audit log: " + e.getMessage());
+        }
+    }
+}
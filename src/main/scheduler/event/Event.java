@@ -0,0 +1,149 @@
+package scheduler.event;
+
+import scheduler.util.NameDictionary;
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+// Event is one slot of the EventBus ring. Events are preallocated and reused, so names are kept as
+// NameDictionary ids and the date as an epoch day; which fields are set depends on the type:
+//      PATIENT_CREATED         patient
+//      CAREGIVER_CREATED       caregiver
+//      AVAILABILITY_UPLOADED   caregiver, day
+//      APPOINTMENT_RESERVED    appointment id, day, patient, caregiver, vaccine, slot (one dose was taken)
+//      APPOINTMENT_CANCELED    appointment id, day, patient, caregiver, vaccine, slot (one dose was given back)
+//      DOSES_CHANGED           vaccine, doses (the change, e.g. from add_doses)
+// A consumer gets its own copy that stays valid only until its onEvent returns.
+public class Event {
+
+    // the sequence stored in this slot, or -1 while the producer is rewriting it
+    volatile long sequence = -1;
+
+    private EventType type;
+    private long timeMillis;
+    private int appointmentId;
+    private int patient;
+    private int caregiver;
+    private int vaccine;
+    private int day;
+    private int slot;
+    private int doses;
+
+    Event() {
+    }
+
+    void set(EventType type, int appointmentId, int patient, int caregiver, int vaccine, int day, int slot,
+             int doses) {
+        this.type = type;
+        this.timeMillis = System.currentTimeMillis();
+        this.appointmentId = appointmentId;
+        this.patient = patient;
+        this.caregiver = caregiver;
+        this.vaccine = vaccine;
+        this.day = day;
+        this.slot = slot;
+        this.doses = doses;
+    }
+
+    void copyFrom(Event other, long sequence) {
+        this.sequence = sequence;
+        this.type = other.type;
+        this.timeMillis = other.timeMillis;
+        this.appointmentId = other.appointmentId;
+        this.patient = other.patient;
+        this.caregiver = other.caregiver;
+        this.vaccine = other.vaccine;
+        this.day = other.day;
+        this.slot = other.slot;
+        this.doses = other.doses;
+    }
+
+    // Getters
+    public long getSequence() {
+        return sequence;
+    }
+
+    public EventType getType() {
+        return type;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    // the NameDictionary.PATIENTS id of the patient, 0 if the event has none
+    public int getPatient() {
+        return patient;
+    }
+
+    // the NameDictionary.CAREGIVERS id of the caregiver, 0 if the event has none
+    public int getCaregiver() {
+        return caregiver;
+    }
+
+    // the NameDictionary.VACCINES id of the vaccine, 0 if the event has none
+    public int getVaccine() {
+        return vaccine;
+    }
+
+    public String getPatientName() {
+        return patient == 0 ? null : NameDictionary.PATIENTS.name(patient);
+    }
+
+    public String getCaregiverName() {
+        return caregiver == 0 ? null : NameDictionary.CAREGIVERS.name(caregiver);
+    }
+
+    public String getVaccineName() {
+        return vaccine == 0 ? null : NameDictionary.VACCINES.name(vaccine);
+    }
+
+    // the day as an epoch day
+    public int getDay() {
+        return day;
+    }
+
+    public Date getDate() {
+        return Date.valueOf(LocalDate.ofEpochDay(day));
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getDoses() {
+        return doses;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(type);
+        if (appointmentId != 0) {
+            sb.append(" id=").append(appointmentId);
+        }
+        if (type == EventType.AVAILABILITY_UPLOADED || type == EventType.APPOINTMENT_RESERVED
+                || type == EventType.APPOINTMENT_CANCELED) {
+            sb.append(" date=").append(LocalDate.ofEpochDay(day));
+        }
+        if (type == EventType.APPOINTMENT_RESERVED || type == EventType.APPOINTMENT_CANCELED) {
+            sb.append(" slot=").append(slot);
+        }
+        if (patient != 0) {
+            sb.append(" patient=").append(getPatientName());
+        }
+        if (caregiver != 0) {
+            sb.append(" caregiver=").append(getCaregiverName());
+        }
+        if (vaccine != 0) {
+            sb.append(" vaccine=").append(getVaccineName());
+        }
+        if (type == EventType.DOSES_CHANGED) {
+            sb.append(" doses=").append(doses);
+        }
+        return sb.toString();
+    }
+}
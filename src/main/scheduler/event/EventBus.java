@@ -0,0 +1,286 @@
+package scheduler.event;
+
+import scheduler.model.Appointment;
+import scheduler.util.ErrorLog;
+import scheduler.util.NameDictionary;
+import scheduler.util.Util;
+
+import java.lang.invoke.VarHandle;
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// EventBus hands what happened in the scheduler (accounts created, availability uploaded, appointments
+// reserved and canceled, doses added) to side work such as audit logs, without that work running inside the
+// commands. Events go into a preallocated ring of EventBusSize slots (a power of two); publishing is one
+// short synchronized copy into the next slot, and never waits: it runs inside a user's command. Each subscriber
+// reads the ring on its own thread at its own sequence and, when it has caught up, parks for exponentially longer
+// (up to MAX_IDLE_PARK_NANOS) until a publisher unparks it. A KEEP subscriber never has events it has not handled
+// overwritten: while the ring is full of them, new events are discarded and counted as rejected (reported on
+// stderr). A DROP subscriber never holds events up; if it falls a whole ring behind it skips the overwritten
+// events and counts them as dropped.
+public class EventBus {
+
+    public enum Backpressure { KEEP, DROP }
+
+    private static final int SPINS = 100;
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    private static final EventBus instance = new EventBus(Util.intSetting("EventBusSize", 4096));
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong rejected = new AtomicLong();
+
+    // the last published sequence
+    private volatile long cursor = -1;
+
+    // guarded by this
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    private Subscription[] keeping = new Subscription[0];
+
+    public EventBus(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = capacity - 1;
+    }
+
+    public static EventBus getInstance() {
+        return instance;
+    }
+
+    // Starts a thread that hands every event published from now on to the consumer
+    public synchronized Subscription subscribe(String name, EventConsumer consumer, Backpressure backpressure) {
+        Subscription subscription = new Subscription(name, consumer, backpressure, cursor);
+        subscriptions = append(subscriptions, subscription);
+        if (backpressure == Backpressure.KEEP) {
+            keeping = append(keeping, subscription);
+        }
+        subscription.thread.start();
+        return subscription;
+    }
+
+    // Stops every subscriber once it has handled the events published so far
+    public void shutdown() {
+        Subscription[] stopping;
+        synchronized (this) {
+            stopping = subscriptions;
+            subscriptions = new Subscription[0];
+            keeping = new Subscription[0];
+        }
+        for (Subscription subscription : stopping) {
+            subscription.running = false;
+            LockSupport.unpark(subscription.thread);
+        }
+        for (Subscription subscription : stopping) {
+            try {
+                subscription.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void patientCreated(String username) {
+        if (subscriptions.length > 0) {
+            publish(EventType.PATIENT_CREATED, 0, NameDictionary.PATIENTS.intern(username), 0, 0, 0, 0, 0);
+        }
+    }
+
+    public void caregiverCreated(String username) {
+        if (subscriptions.length > 0) {
+            publish(EventType.CAREGIVER_CREATED, 0, 0, NameDictionary.CAREGIVERS.intern(username), 0, 0, 0, 0);
+        }
+    }
+
+    public void availabilityUploaded(String caregiver, Date d) {
+        if (subscriptions.length > 0) {
+            publish(EventType.AVAILABILITY_UPLOADED, 0, 0, NameDictionary.CAREGIVERS.intern(caregiver), 0,
+                    (int) d.toLocalDate().toEpochDay(), 0, 0);
+        }
+    }
+
+    public void appointmentReserved(Appointment appointment) {
+        if (subscriptions.length > 0) {
+            publish(EventType.APPOINTMENT_RESERVED, appointment.getId(),
+                    NameDictionary.PATIENTS.intern(appointment.getPatientName()),
+                    NameDictionary.CAREGIVERS.intern(appointment.getCaregiverName()),
+                    NameDictionary.VACCINES.intern(appointment.getVaccineName()),
+                    (int) appointment.getTime().toLocalDate().toEpochDay(), appointment.getSlot(), -1);
+        }
+    }
+
+    public void appointmentCanceled(int id, Date d, String patient, String caregiver, String vaccine, int slot) {
+        if (subscriptions.length > 0) {
+            publish(EventType.APPOINTMENT_CANCELED, id, NameDictionary.PATIENTS.intern(patient),
+                    NameDictionary.CAREGIVERS.intern(caregiver), NameDictionary.VACCINES.intern(vaccine),
+                    (int) d.toLocalDate().toEpochDay(), slot, 1);
+        }
+    }
+
+    public void dosesChanged(String vaccine, int doses) {
+        if (subscriptions.length > 0) {
+            publish(EventType.DOSES_CHANGED, 0, 0, 0, NameDictionary.VACCINES.intern(vaccine), 0, 0, doses);
+        }
+    }
+
+    private void publish(EventType type, int appointmentId, int patient, int caregiver, int vaccine, int day,
+                         int slot, int doses) {
+        synchronized (this) {
+            if (isFull()) {
+                // a KEEP subscriber is a whole ring behind: the command does not wait for it
+                rejected.incrementAndGet();
+                ErrorLog.report("The event bus is full, events are being rejected");
+                return;
+            }
+            write(type, appointmentId, patient, caregiver, vaccine, day, slot, doses);
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.parked) {
+                LockSupport.unpark(subscription.thread);
+            }
+        }
+    }
+
+    // the number of events not published because a KEEP subscriber was a whole ring behind
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    // whether the next slot holds an event a KEEP subscriber has not handled yet
+    private boolean isFull() {
+        long wrapPoint = cursor + 1 - ring.length;
+        for (Subscription subscription : keeping) {
+            if (subscription.sequence.get() <= wrapPoint && subscription.running) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(EventType type, int appointmentId, int patient, int caregiver, int vaccine, int day,
+                       int slot, int doses) {
+        long sequence = cursor + 1;
+        Event event = ring[(int) sequence & mask];
+        event.sequence = -1; // readers that were lapped see the slot is being rewritten
+        VarHandle.storeStoreFence();
+        event.set(type, appointmentId, patient, caregiver, vaccine, day, slot, doses);
+        event.sequence = sequence;
+        cursor = sequence;
+    }
+
+    private static Subscription[] append(Subscription[] subscriptions, Subscription subscription) {
+        Subscription[] copy = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        copy[subscriptions.length] = subscription;
+        return copy;
+    }
+
+    // One consumer reading the ring on its own thread
+    public class Subscription implements Runnable {
+        private final String name;
+        private final EventConsumer consumer;
+        private final Backpressure backpressure;
+        private final Thread thread;
+        private final Event current = new Event();
+
+        // the last sequence this subscriber is done with
+        private final AtomicLong sequence;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean running = true;
+        // set while the thread parks, so publishers know to unpark it
+        private volatile boolean parked;
+
+        private Subscription(String name, EventConsumer consumer, Backpressure backpressure, long start) {
+            this.name = name;
+            this.consumer = consumer;
+            this.backpressure = backpressure;
+            this.sequence = new AtomicLong(start);
+            this.thread = new Thread(this, "events-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Backpressure getBackpressure() {
+            return backpressure;
+        }
+
+        // the number of events this subscriber missed because it fell a whole ring behind
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                long next = sequence.get() + 1;
+                long available = cursor;
+                if (next > available) {
+                    if (!running) {
+                        break;
+                    }
+                    idle = backOff(idle, available);
+                    continue;
+                }
+                idle = 0;
+                if (available - next >= ring.length) { // lapped: the oldest events are gone already
+                    long skipTo = available - ring.length + 1;
+                    dropped.addAndGet(skipTo - next);
+                    next = skipTo;
+                }
+                Event slot = ring[(int) next & mask];
+                if (slot.sequence == next) {
+                    current.copyFrom(slot, next);
+                    VarHandle.loadLoadFence();
+                    if (slot.sequence == next) {
+                        handle(next == available);
+                    } else {
+                        dropped.incrementAndGet(); // overwritten while it was being copied
+                    }
+                } else {
+                    dropped.incrementAndGet();
+                }
+                sequence.set(next);
+            }
+            try {
+                consumer.close();
+            } catch (RuntimeException e) {
+                ErrorLog.report("Error occurred when closing " + name, e);
+            }
+        }
+
+        // Spins for a while, then parks for twice as long every time up to MAX_IDLE_PARK_NANOS, unless an event
+        // after available was published in the meantime
+        private int backOff(int idle, long available) {
+            if (idle < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                parked = true;
+                if (cursor == available && running) {
+                    int doublings = Math.min(idle - SPINS, 20);
+                    LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS, MIN_IDLE_PARK_NANOS << doublings));
+                }
+                parked = false;
+            }
+            return idle + 1;
+        }
+
+        private void handle(boolean endOfBatch) {
+            try {
+                consumer.onEvent(current, endOfBatch);
+            } catch (RuntimeException e) {
+                ErrorLog.report("Error occurred when handling events in " + name, e);
+            }
+        }
+    }
+}
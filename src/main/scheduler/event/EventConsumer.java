@@ -0,0 +1,12 @@
+package scheduler.event;
+
+// EventConsumer handles the events of the EventBus on its own thread
+public interface EventConsumer {
+
+    // Handles one event; endOfBatch is true when no further event is waiting right now, a good time to flush
+    void onEvent(Event event, boolean endOfBatch);
+
+    // Called on the consumer thread once the bus shuts down and every published event has been handled
+    default void close() {
+    }
+}
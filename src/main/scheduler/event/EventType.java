@@ -0,0 +1,11 @@
+package scheduler.event;
+
+// The kinds of events published on the EventBus
+public enum EventType {
+    PATIENT_CREATED,
+    CAREGIVER_CREATED,
+    AVAILABILITY_UPLOADED,
+    APPOINTMENT_RESERVED,
+    APPOINTMENT_CANCELED,
+    DOSES_CHANGED
+}
@@ -0,0 +1,161 @@
+package scheduler.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+// ColumnarWriter writes rows in a compact binary format that stores each column separately. Rows are
+// collected into row groups of a fixed size, so memory use does not depend on the size of the table.
+// All numbers are big endian.
+//
+//      file      := "VSCF" version:int columns:int column* group* end:int(0) rows:long
+//      column    := type:byte nameLength:short name:utf8
+//      group     := rows:int (length:int data)        -- one length/data pair per column
+//      INT data  := value:int per row, Integer.MIN_VALUE for null
+//      LONG data := value:long per row, Long.MIN_VALUE for null
+//      DATE data := days since 1970-01-01:int per row, Integer.MIN_VALUE for null
+//      BIT data  := 0, 1 or 2 (null):byte per row
+//      TEXT data := (length:int utf8) per row, length -1 for null
+public class ColumnarWriter implements RowWriter {
+
+    public static final byte INT = 1;
+    public static final byte DATE = 2;
+    public static final byte BIT = 3;
+    public static final byte TEXT = 4;
+    public static final byte LONG = 5;
+
+    private static final int VERSION = 1;
+    private static final int NULL_INT = Integer.MIN_VALUE;
+
+    private final ChannelOutput output;
+    private final int groupSize;
+    private byte[] types;
+    private ByteBuffer[] columns;
+    private int rowsInGroup = 0;
+    private long rows = 0;
+
+    public ColumnarWriter(Path path, int groupSize) throws IOException {
+        this.output = new ChannelOutput(path);
+        this.groupSize = groupSize;
+    }
+
+    @Override
+    public void begin(String[] columnNames, int[] columnTypes) throws IOException {
+        types = new byte[columnNames.length];
+        columns = new ByteBuffer[columnNames.length];
+        output.put("VSCF".getBytes(StandardCharsets.US_ASCII));
+        output.putInt(VERSION);
+        output.putInt(columnNames.length);
+        for (int i = 0; i < columnNames.length; i++) {
+            types[i] = typeOf(columnTypes[i]);
+            columns[i] = ByteBuffer.allocate(types[i] == TEXT ? groupSize * 16 : groupSize * 4);
+            byte[] name = columnNames[i].getBytes(StandardCharsets.UTF_8);
+            output.put(types[i]);
+            output.put((byte) (name.length >>> 8));
+            output.put((byte) name.length);
+            output.put(name);
+        }
+    }
+
+    @Override
+    public void write(ResultSet resultSet) throws IOException, SQLException {
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case INT: {
+                    int value = resultSet.getInt(i + 1);
+                    column(i, 4).putInt(resultSet.wasNull() ? NULL_INT : value);
+                    break;
+                }
+                case LONG: {
+                    long value = resultSet.getLong(i + 1);
+                    column(i, 8).putLong(resultSet.wasNull() ? Long.MIN_VALUE : value);
+                    break;
+                }
+                case DATE: {
+                    Date value = resultSet.getDate(i + 1);
+                    column(i, 4).putInt(value == null ? NULL_INT : (int) value.toLocalDate().toEpochDay());
+                    break;
+                }
+                case BIT: {
+                    boolean value = resultSet.getBoolean(i + 1);
+                    column(i, 1).put(resultSet.wasNull() ? 2 : value ? (byte) 1 : 0);
+                    break;
+                }
+                default: {
+                    String value = resultSet.getString(i + 1);
+                    if (value == null) {
+                        column(i, 4).putInt(-1);
+                    } else {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        column(i, 4 + bytes.length).putInt(bytes.length).put(bytes);
+                    }
+                }
+            }
+        }
+        rows++;
+        if (++rowsInGroup == groupSize) {
+            writeGroup();
+        }
+    }
+
+    // Returns the buffer of a column, growing it if the value does not fit
+    private ByteBuffer column(int i, int bytes) {
+        ByteBuffer buffer = columns[i];
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            columns[i] = larger;
+        }
+        return columns[i];
+    }
+
+    private void writeGroup() throws IOException {
+        if (rowsInGroup == 0) {
+            return;
+        }
+        output.putInt(rowsInGroup);
+        for (ByteBuffer column : columns) {
+            output.putInt(column.position());
+            output.put(column.array(), 0, column.position());
+            column.clear();
+        }
+        rowsInGroup = 0;
+    }
+
+    private static byte typeOf(int sqlType) {
+        switch (sqlType) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.DATE:
+                return DATE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BIT;
+            default:
+                return TEXT;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (columns != null) {
+                writeGroup();
+                output.putInt(0);
+                output.putLong(rows);
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package scheduler.export;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// CsvWriter writes rows as RFC 4180 CSV with a header line; fields containing a comma, quote or line
+// break are quoted
+public class CsvWriter implements RowWriter {
+
+    private final ChannelOutput output;
+    private int columns;
+
+    public CsvWriter(Path path) throws IOException {
+        this.output = new ChannelOutput(path);
+    }
+
+    @Override
+    public void begin(String[] columnNames, int[] columnTypes) throws IOException {
+        columns = columnNames.length;
+        for (int i = 0; i < columns; i++) {
+            writeField(columnNames[i], i);
+        }
+    }
+
+    @Override
+    public void write(ResultSet resultSet) throws IOException, SQLException {
+        for (int i = 0; i < columns; i++) {
+            writeField(resultSet.getString(i + 1), i);
+        }
+    }
+
+    private void writeField(String value, int column) throws IOException {
+        if (value != null) {
+            if (needsQuotes(value)) {
+                output.put((byte) '"');
+                output.put(value.replace("\"", "\"\"").getBytes(StandardCharsets.UTF_8));
+                output.put((byte) '"');
+            } else {
+                output.put(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        output.put(column == columns - 1 ? (byte) '\n' : (byte) ',');
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
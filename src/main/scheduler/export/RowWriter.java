@@ -0,0 +1,18 @@
+package scheduler.export;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// RowWriter is a file format for TableExporter: it receives the column layout once and then the rows one by one
+public interface RowWriter extends AutoCloseable {
+
+    // Called once before the first row with the names and types (java.sql.Types) of the columns
+    void begin(String[] columnNames, int[] columnTypes) throws IOException;
+
+    // Writes the current row of the result set
+    void write(ResultSet resultSet) throws IOException, SQLException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,123 @@
+package scheduler.export;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+// TableExporter streams the Appointments, Availabilities or Vaccines table into a RowWriter. The query
+// runs on a forward-only, read-only cursor with a large fetch size, and each row is handed to the writer
+// as soon as it arrives, so memory use stays flat however large the table is. When the storage is sharded by
+// date, the dated tables are exported from one shard after the other into the same file.
+public class TableExporter {
+
+    private static final int fetchSize = Util.intSetting("ExportFetchSize", 10_000);
+
+    private static final String exportAppointments = "SELECT id, Time, PatientName, CaregiverName, VaccineName, Slot\n" +
+            "FROM [dbo].[Appointments]";
+
+    private static final String exportAvailabilities = "SELECT Time, Username, Available\n" +
+            "FROM [dbo].[Availabilities]";
+
+    private static final String exportSlots = "SELECT Time, Username, Slots0, Slots1\n" +
+            "FROM [dbo].[AvailabilitySlots]";
+
+    private static final String exportVaccines = "SELECT Name, Doses\n" +
+            "FROM [dbo].[Vaccines]";
+
+    private TableExporter() {
+    }
+
+    // Whether export knows the table; check it before opening the file to export to
+    public static boolean isTable(String table) {
+        return query(table) != null;
+    }
+
+    private static String query(String table) {
+        switch (table) {
+            case "appointments":
+                return exportAppointments;
+            case "availabilities":
+                return exportAvailabilities;
+            case "slots":
+                return exportSlots;
+            case "vaccines":
+                return exportVaccines;
+            default:
+                return null;
+        }
+    }
+
+    // Exports one table (appointments, availabilities, slots or vaccines) and returns the number of rows written.
+    // from and to (both inclusive, either may be null) limit the Time of appointments and availabilities, so that
+    // only new days have to be exported; only the bounds that are given go into the query, so it can seek on Time
+    public static long export(String table, Date from, Date to, RowWriter writer) throws SQLException, IOException {
+        String sql = query(table);
+        if (sql == null) {
+            throw new IllegalArgumentException("Unknown table: " + table);
+        }
+        boolean dated = !table.equals("vaccines");
+        if (!dated) {
+            from = null;
+            to = null;
+        }
+        if (from != null && to != null) {
+            sql += "\nWHERE Time >= ? AND Time <= ?";
+        } else if (from != null) {
+            sql += "\nWHERE Time >= ?";
+        } else if (to != null) {
+            sql += "\nWHERE Time <= ?";
+        }
+
+        long rows = 0;
+        int shards = dated ? ConnectionManager.shardCount() : 1;
+        for (int shard = 0; shard < shards; shard++) {
+            rows += exportShard(shard, sql, from, to, writer, shard == 0);
+        }
+        return rows;
+    }
+
+    private static long exportShard(int shard, String sql, Date from, Date to, RowWriter writer, boolean first)
+            throws SQLException, IOException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = shard == 0 ? cm.createReadConnection() : cm.createShardConnection(shard);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            int index = 1;
+            if (from != null) {
+                statement.setDate(index++, from);
+            }
+            if (to != null) {
+                statement.setDate(index, to);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.setFetchSize(fetchSize);
+            if (first) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                String[] names = new String[metaData.getColumnCount()];
+                int[] types = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = metaData.getColumnName(i + 1);
+                    types[i] = metaData.getColumnType(i + 1);
+                }
+                writer.begin(names, types);
+            }
+            long rows = 0;
+            while (resultSet.next()) {
+                writer.write(resultSet);
+                rows++;
+            }
+            return rows;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package scheduler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// CommandEvent is recorded by Java Flight Recorder for every command a Scheduler runs, lasting from the moment the
+// command line is read until its last reply is printed
+@Name("scheduler.Command")
+@Label("Scheduler Command")
+@Category("Scheduler")
+@Description("A command run by a Scheduler session")
+@StackTrace(false)
+public class CommandEvent extends jdk.jfr.Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Role")
+    @Description("patient, caregiver or none, for the user logged in when the command started")
+    public String role;
+
+    @Label("Outcome")
+    @Description("SUCCESS, REJECTED or FAILED, judged by the replies of the command")
+    public String outcome;
+}
@@ -0,0 +1,32 @@
+package scheduler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// ConnectionEvent is recorded for every connection borrowed from a ConnectionPool; its duration is the time the
+// caller waited, for a free permit and for a new physical connection if no idle one could be reused
+@Name("scheduler.ConnectionBorrow")
+@Label("Connection Borrow")
+@Category({"Scheduler", "Database"})
+@Description("Waiting for a pooled database connection")
+@Threshold("1 ms")
+public class ConnectionEvent extends jdk.jfr.Event {
+
+    @Label("Database")
+    public String database;
+
+    @Label("Command")
+    @Description("The scheduler command that needed the connection")
+    public String command;
+
+    @Label("Opened")
+    @Description("Whether a new physical connection had to be opened")
+    public boolean opened;
+
+    @Label("Busy")
+    @Description("Whether the borrow gave up because the database was busy or the circuit breaker was open")
+    public boolean busy;
+}
@@ -0,0 +1,57 @@
+package scheduler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+// StatementEvent is recorded for every execution of a prepared statement, lasting from the execute call until its
+// results have been read; the SQL text has placeholders only, never bind values
+@Name("scheduler.Statement")
+@Label("Database Statement")
+@Category({"Scheduler", "Database"})
+@Description("An execution of a prepared statement, including fetching its results")
+@Threshold("1 ms")
+public class StatementEvent extends jdk.jfr.Event {
+
+    @Label("Kind")
+    @Description("The first keyword of the statement, e.g. SELECT, INSERT, UPDATE, DELETE or MERGE")
+    public String kind;
+
+    @Label("SQL")
+    public String sql;
+
+    @Label("Command")
+    @Description("The scheduler command that ran the statement")
+    public String command;
+
+    @Label("Database")
+    public String database;
+
+    @Label("Rows")
+    @Description("Rows read, or rows changed by an update")
+    public long rows;
+
+    @Label("Execute Time")
+    @Description("Time spent in the execute call, without fetching")
+    @Timespan(Timespan.NANOSECONDS)
+    public long executeTime;
+
+    @Label("Failed")
+    public boolean failed;
+
+    // The first word of the statement, upper-cased
+    public static String kindOf(String sql) {
+        int start = 0;
+        while (start < sql.length() && !Character.isLetter(sql.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        return sql.substring(start, end).toUpperCase();
+    }
+}
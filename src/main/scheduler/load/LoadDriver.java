@@ -0,0 +1,430 @@
+package scheduler.load;
+
+import scheduler.Outcome;
+import scheduler.Scheduler;
+import scheduler.cache.VaccineInventory;
+import scheduler.db.ConnectionManager;
+import scheduler.db.DatabaseExecutor;
+import scheduler.util.LoginRateLimiter;
+import scheduler.util.Slots;
+import scheduler.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// LoadDriver runs many simulated users against the scheduler at the same time and reports how it held up.
+// Every simulated user drives its own Scheduler session with the same commands a person would type, so the
+// whole stack (models, caches, connection pool) is exercised. Run it against a local stand-in database
+// (set ConnectionURL), never against production: it creates users, availability and vaccines named after
+// the run, and checks the invariants of exactly that data at the end. The login rate limiter is off during the
+// run: the simulated users log in many times a minute, and the mix is meant to measure logins, not refusals.
+//
+// Settings (environment variables):
+//      LoadUsers (16)          - concurrent simulated patients, each paired with a caregiver session
+//      LoadSeconds (60)        - how long to generate load
+//      LoadCaregivers (20)     - caregivers created for the run
+//      LoadDays (30)           - days with availability; popularity of a day falls off as a Zipf distribution
+//      LoadDateSkewPercent (110) - Zipf exponent times 100, higher means a few dates get most of the traffic
+//      LoadVaccines (3)        - vaccines created for the run
+//      LoadInitialDoses (500)  - doses added to every vaccine before the run
+public class LoadDriver {
+
+    private static final Pattern appointmentId = Pattern.compile("Appointment ID: (\\d+),");
+    private static final String password = "load-test";
+
+    // relative weight of every command in the mix
+    private static final String[] commands = {"search_caregiver_schedule", "show_appointments", "reserve",
+            "cancel", "login_patient", "create_patient", "upload_availability", "add_doses"};
+    private static final int[] weights = {30, 20, 20, 7, 6, 2, 8, 7};
+
+    private final int users = Util.intSetting("LoadUsers", 16);
+    private final int seconds = Util.intSetting("LoadSeconds", 60);
+    private final int caregivers = Util.intSetting("LoadCaregivers", 20);
+    private final int days = Util.intSetting("LoadDays", 30);
+    private final double skew = Util.intSetting("LoadDateSkewPercent", 110) / 100.0;
+    private final int vaccines = Util.intSetting("LoadVaccines", 3);
+    private final int initialDoses = Util.intSetting("LoadInitialDoses", 500);
+
+    // every name created by this run starts with the prefix, so the checks at the end only look at this run
+    private final String prefix = "lt" + Long.toString(System.currentTimeMillis(), 36);
+    private final LocalDate firstDay = LocalDate.now().plusYears(1);
+    private final double[] dateDistribution = zipf(days, skew);
+    // the next day each caregiver can still upload availability for
+    private final AtomicInteger[] nextUploadDay = new AtomicInteger[caregivers];
+    private final AtomicInteger patientCount = new AtomicInteger();
+
+    // what the driver expects the database to contain once the run is over
+    private final Map<String, AtomicInteger> expectedDoses = new HashMap<>();
+    // the doses added to every vaccine, which the doses left and the appointments booked must add up to
+    private final Map<String, AtomicInteger> addedDoses = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        new LoadDriver().run();
+        VaccineInventory.getInstance().shutdown();
+        DatabaseExecutor.shutdown();
+        ConnectionManager.shutdown();
+    }
+
+    private void run() throws Exception {
+        System.out.println("Load run " + prefix + ": " + users + " users for " + seconds + "s, " + caregivers +
+                " caregivers, " + days + " days, " + vaccines + " vaccines");
+        LoginRateLimiter.getInstance().setEnabled(false);
+        setUp();
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            workers.add(new Worker(i, deadline));
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Stats> total = new TreeMap<>();
+        for (Worker worker : workers) {
+            for (Map.Entry<String, Stats> entry : worker.stats.entrySet()) {
+                total.computeIfAbsent(entry.getKey(), k -> new Stats()).merge(entry.getValue());
+            }
+        }
+        report(total, elapsed);
+
+        // write the buffered dose changes before checking the database
+        VaccineInventory.getInstance().flush();
+        checkInvariants();
+    }
+
+    // Creates the caregivers with their availability and the vaccines with their initial doses
+    private void setUp() {
+        Scheduler session = new Scheduler(new PrintStream(new ByteArrayOutputStream()));
+        for (int c = 0; c < caregivers; c++) {
+            session.runCommand("create_caregiver " + caregiverName(c) + " " + password);
+            for (int d = 0; d < days; d++) {
+                session.runCommand("upload_availability " + firstDay.plusDays(d));
+            }
+            if (c == 0) {
+                for (int v = 0; v < vaccines; v++) {
+                    session.runCommand("add_doses " + vaccineName(v) + " " + initialDoses);
+                    expectedDoses.put(vaccineName(v), new AtomicInteger(initialDoses));
+                    addedDoses.put(vaccineName(v), new AtomicInteger(initialDoses));
+                }
+            }
+            session.runCommand("logout");
+            nextUploadDay[c] = new AtomicInteger(days);
+        }
+    }
+
+    private void report(Map<String, Stats> total, double elapsed) {
+        long operations = 0;
+        long failed = 0;
+        System.out.println();
+        System.out.printf("%-26s %8s %8s %8s %8s %9s %9s %9s %9s%n", "command", "count", "ok", "rejected",
+                "failed", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Stats> entry : total.entrySet()) {
+            Stats stats = entry.getValue();
+            long[] sorted = Arrays.copyOf(stats.latencies, stats.count);
+            Arrays.sort(sorted);
+            System.out.printf("%-26s %8d %8d %8d %8d %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), stats.count,
+                    stats.outcomes[Outcome.SUCCESS.ordinal()], stats.outcomes[Outcome.REJECTED.ordinal()],
+                    stats.outcomes[Outcome.FAILED.ordinal()], percentile(sorted, 0.50), percentile(sorted, 0.95),
+                    percentile(sorted, 0.99), percentile(sorted, 1.0));
+            operations += stats.count;
+            failed += stats.outcomes[Outcome.FAILED.ordinal()];
+        }
+        System.out.println();
+        System.out.printf("throughput: %.1f commands/s, failure rate: %.2f%%%n", operations / elapsed,
+                operations == 0 ? 0.0 : 100.0 * failed / operations);
+    }
+
+    // Checks the data of this run: no caregiver booked twice on a day, no booked day or slot still offered as
+    // available, the doses left plus the doses booked equal to the doses added, and every dose accounted for.
+    // With time slots a caregiver has many appointments a day and the primary key already keeps two off the same
+    // slot, so double bookings are only looked for without slots
+    private void checkInvariants() throws SQLException {
+        String doubleBookings = "SELECT Time, CaregiverName, COUNT(*) AS Bookings\n" +
+                "FROM Appointments\n" +
+                "WHERE CaregiverName LIKE ?\n" +
+                "GROUP BY Time, CaregiverName\n" +
+                "HAVING COUNT(*) > 1;";
+        String bookedDoses = "SELECT VaccineName, COUNT(*) AS Booked\n" +
+                "FROM Appointments\n" +
+                "WHERE VaccineName LIKE ?\n" +
+                "GROUP BY VaccineName;";
+        String bookedButAvailable = "SELECT ap.id, ap.Time, ap.CaregiverName\n" +
+                "FROM Appointments ap JOIN Availabilities av ON av.Time = ap.Time AND av.Username = ap.CaregiverName\n" +
+                "WHERE ap.CaregiverName LIKE ? AND av.Available = 1;";
+        String bookedSlots = "SELECT ap.id, ap.Time, ap.CaregiverName, ap.Slot, av.Slots0, av.Slots1\n" +
+                "FROM Appointments ap JOIN AvailabilitySlots av ON av.Time = ap.Time AND av.Username = ap.CaregiverName\n" +
+                "WHERE ap.CaregiverName LIKE ?;";
+        String doses = "SELECT Name, Doses FROM Vaccines WHERE Name LIKE ?;";
+
+        List<String> violations = new ArrayList<>();
+        Map<String, Integer> booked = new HashMap<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            ResultSet resultSet;
+            // every shard holds the appointments and availability of its own days
+            for (int shard = 0; shard < ConnectionManager.shardCount(); shard++) {
+                ConnectionManager shardManager = new ConnectionManager();
+                Connection shardCon = shard == 0 ? con : shardManager.createShardConnection(shard);
+                try {
+                    if (!Slots.enabled()) {
+                        resultSet = query(shardCon, doubleBookings, prefix + "c%");
+                        while (resultSet.next()) {
+                            violations.add("double booking: " + resultSet.getString("CaregiverName") + " on " +
+                                    resultSet.getString("Time") + " (" + resultSet.getInt("Bookings")
+                                    + " appointments)");
+                        }
+                    }
+                    resultSet = query(shardCon, bookedDoses, prefix + "v%");
+                    while (resultSet.next()) {
+                        booked.merge(resultSet.getString("VaccineName"), resultSet.getInt("Booked"), Integer::sum);
+                    }
+                    resultSet = query(shardCon, Slots.enabled() ? bookedSlots : bookedButAvailable, prefix + "c%");
+                    while (resultSet.next()) {
+                        if (Slots.enabled() && !Slots.isFree(new long[]{resultSet.getLong("Slots0"),
+                                resultSet.getLong("Slots1")}, resultSet.getInt("Slot"))) {
+                            continue;
+                        }
+                        violations.add("booked but still available: appointment " + resultSet.getInt("id") +
+                                " of " + resultSet.getString("CaregiverName") + " on " + resultSet.getString("Time"));
+                    }
+                } finally {
+                    shardManager.closeConnection();
+                }
+            }
+            resultSet = query(con, doses, prefix + "v%");
+            while (resultSet.next()) {
+                String name = resultSet.getString("Name");
+                int bookings = booked.getOrDefault(name, 0);
+                if (resultSet.getInt("Doses") + bookings != addedDoses.get(name).get()) {
+                    violations.add("doses and bookings disagree: " + name + " has " + resultSet.getInt("Doses")
+                            + " doses and " + bookings + " appointments, " + addedDoses.get(name).get()
+                            + " doses were added");
+                }
+                int expected = expectedDoses.get(name).get();
+                if (resultSet.getInt("Doses") != expected) {
+                    violations.add("dose count drift: " + name + " has " + resultSet.getInt("Doses") +
+                            ", expected " + expected);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        System.out.println("invariant violations: " + violations.size());
+        for (String violation : violations) {
+            System.out.println("  " + violation);
+        }
+    }
+
+    private static ResultSet query(Connection con, String sql, String pattern) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql);
+        statement.setString(1, pattern);
+        return statement.executeQuery();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // Cumulative Zipf distribution over n ranks with the given exponent
+    private static double[] zipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private String caregiverName(int c) {
+        return prefix + "c" + c;
+    }
+
+    private String vaccineName(int v) {
+        return prefix + "v" + v;
+    }
+
+    // One simulated patient, paired with a caregiver session for the caregiver commands in the mix
+    private class Worker extends Thread {
+        private final long deadline;
+        private final Random random;
+        private final int caregiver;
+        private final ByteArrayOutputStream patientOutput = new ByteArrayOutputStream();
+        private final Scheduler patientSession = new Scheduler(new PrintStream(patientOutput, true));
+        private final Scheduler caregiverSession = new Scheduler(new PrintStream(new ByteArrayOutputStream()));
+        private final List<String> appointments = new ArrayList<>();
+        private final Map<String, Stats> stats = new HashMap<>();
+        private String patient;
+
+        private Worker(int index, long deadline) {
+            super("load-" + index);
+            this.deadline = deadline;
+            this.random = new Random(index);
+            this.caregiver = index % caregivers;
+        }
+
+        @Override
+        public void run() {
+            execute("create_patient", patientSession, "create_patient " + newPatient() + " " + password);
+            caregiverSession.runCommand("login_caregiver " + caregiverName(caregiver) + " " + password);
+            while (System.nanoTime() < deadline) {
+                step(pick());
+            }
+        }
+
+        private void step(String command) {
+            switch (command) {
+                case "search_caregiver_schedule":
+                    execute(command, patientSession, command + " " + randomDay());
+                    break;
+                case "show_appointments":
+                    execute(command, patientSession, command);
+                    break;
+                case "reserve": {
+                    String vaccine = vaccineName(random.nextInt(vaccines));
+                    patientOutput.reset();
+                    if (execute(command, patientSession, command + " " + randomDay() + " " + vaccine)
+                            == Outcome.SUCCESS) {
+                        Matcher matcher = appointmentId.matcher(patientOutput.toString());
+                        if (matcher.find()) {
+                            appointments.add(matcher.group(1) + " " + vaccine);
+                            expectedDoses.get(vaccine).decrementAndGet();
+                        }
+                    }
+                    break;
+                }
+                case "cancel": {
+                    if (appointments.isEmpty()) {
+                        break;
+                    }
+                    String[] appointment = appointments.remove(random.nextInt(appointments.size())).split(" ");
+                    if (execute(command, patientSession, command + " " + appointment[0]) == Outcome.SUCCESS) {
+                        expectedDoses.get(appointment[1]).incrementAndGet();
+                    }
+                    break;
+                }
+                case "login_patient":
+                    patientSession.runCommand("logout");
+                    execute(command, patientSession, command + " " + patient + " " + password);
+                    break;
+                case "create_patient":
+                    // a new patient replaces this worker's current one
+                    patientSession.runCommand("logout");
+                    appointments.clear();
+                    execute(command, patientSession, command + " " + newPatient() + " " + password);
+                    break;
+                case "upload_availability": {
+                    int day = nextUploadDay[caregiver].getAndIncrement();
+                    execute(command, caregiverSession, command + " " + firstDay.plusDays(day));
+                    break;
+                }
+                case "add_doses": {
+                    String vaccine = vaccineName(random.nextInt(vaccines));
+                    int amount = 1 + random.nextInt(10);
+                    if (execute(command, caregiverSession, command + " " + vaccine + " " + amount)
+                            == Outcome.SUCCESS) {
+                        expectedDoses.get(vaccine).addAndGet(amount);
+                        addedDoses.get(vaccine).addAndGet(amount);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException(command);
+            }
+        }
+
+        private Outcome execute(String command, Scheduler session, String line) {
+            long start = System.nanoTime();
+            Outcome outcome;
+            try {
+                session.runCommand(line);
+                outcome = session.getLastOutcome();
+            } catch (RuntimeException e) {
+                outcome = Outcome.FAILED;
+            }
+            stats.computeIfAbsent(command, k -> new Stats()).record(System.nanoTime() - start, outcome);
+            return outcome;
+        }
+
+        private String pick() {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            int r = random.nextInt(total);
+            for (int i = 0; i < weights.length; i++) {
+                r -= weights[i];
+                if (r < 0) {
+                    return commands[i];
+                }
+            }
+            return commands[0];
+        }
+
+        private LocalDate randomDay() {
+            int day = Arrays.binarySearch(dateDistribution, random.nextDouble());
+            return firstDay.plusDays(day >= 0 ? day : Math.min(days - 1, -day - 1));
+        }
+
+        private String newPatient() {
+            patient = prefix + "p" + patientCount.getAndIncrement();
+            return patient;
+        }
+    }
+
+    // Latencies (in nanoseconds) and outcome counts of one command
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private final long[] outcomes = new long[Outcome.values().length];
+
+        private void record(long nanos, Outcome outcome) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            outcomes[outcome.ordinal()]++;
+        }
+
+        private void merge(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = other.latencies[i];
+            }
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] += other.outcomes[i];
+            }
+        }
+    }
+}
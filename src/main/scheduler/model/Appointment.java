@@ -0,0 +1,82 @@
+package scheduler.model;
+
+import java.sql.Date;
+
+public class Appointment {
+    private final int id;
+    private final Date time;
+    private final String patientName;
+    private final String caregiverName;
+    private final String vaccineName;
+    private final int slot;
+
+    private Appointment(AppointmentBuilder builder) {
+        this.id = builder.id;
+        this.time = builder.time;
+        this.patientName = builder.patientName;
+        this.caregiverName = builder.caregiverName;
+        this.vaccineName = builder.vaccineName;
+        this.slot = builder.slot;
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    // the slot of the day (see Slots), 0 when whole days are booked
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return "Appointment{" +
+                "id=" + id +
+                ", time=" + time +
+                ", patientName='" + patientName + '\'' +
+                ", caregiverName='" + caregiverName + '\'' +
+                ", vaccineName='" + vaccineName + '\'' +
+                ", slot=" + slot +
+                '}';
+    }
+
+    public static class AppointmentBuilder {
+        private final int id;
+        private final Date time;
+        private final String patientName;
+        private final String caregiverName;
+        private final String vaccineName;
+        private final int slot;
+
+        public AppointmentBuilder(int id, Date time, String patientName, String caregiverName, String vaccineName,
+                                  int slot) {
+            this.id = id;
+            this.time = time;
+            this.patientName = patientName;
+            this.caregiverName = caregiverName;
+            this.vaccineName = vaccineName;
+            this.slot = slot;
+        }
+
+        public Appointment build() {
+            return new Appointment(this);
+        }
+    }
+}
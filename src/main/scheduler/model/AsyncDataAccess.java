@@ -0,0 +1,72 @@
+package scheduler.model;
+
+import scheduler.cache.VaccineInventory;
+import scheduler.db.DatabaseExecutor;
+import scheduler.db.ReadSession;
+import scheduler.db.StatementLog;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+// AsyncDataAccess runs the blocking model operations on the DatabaseExecutor and returns
+// CompletableFutures, so independent lookups can be issued in parallel and composed. A failed
+// operation completes its future exceptionally with a CompletionException wrapping the SQLException.
+public class AsyncDataAccess {
+
+    private AsyncDataAccess() {
+    }
+
+    // Completes with the doses left according to the vaccine inventory, or null if the vaccine does not exist
+    public static CompletableFuture<Integer> getAvailableDoses(String vaccineName) {
+        return run(() -> VaccineInventory.getInstance().getAvailableDoses(vaccineName));
+    }
+
+    // Completes with the first available caregiver (ordered by username) on the day, or null if there is none
+    public static CompletableFuture<String> findAvailableCaregiver(Date d) {
+        return run(() -> Caregiver.findAvailable(d));
+    }
+
+    // Waits for a future and turns a failure back into the SQLException the blocking API would have thrown
+    public static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    // Runs any blocking database call on the DatabaseExecutor
+    public static <T> CompletableFuture<T> run(SqlSupplier<T> supplier) {
+        String command = StatementLog.currentCommand(); // slow statements on the pool thread name the caller
+        ReadSession session = ReadSession.current(); // and its writes and reads count for the caller's session
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                StatementLog.setCommand(command);
+                ReadSession.bind(session);
+                try {
+                    return supplier.get();
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    StatementLog.setCommand(null);
+                    ReadSession.bind(null);
+                }
+            }, DatabaseExecutor.get());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new SQLException("Too many pending database calls", e));
+        }
+    }
+
+    public interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+}
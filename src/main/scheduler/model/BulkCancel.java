@@ -0,0 +1,240 @@
+package scheduler.model;
+
+import scheduler.cache.AppointmentCache;
+import scheduler.cache.ScheduleCache;
+import scheduler.cache.VaccineInventory;
+import scheduler.db.ConnectionManager;
+import scheduler.db.ServiceBusyException;
+import scheduler.event.EventBus;
+import scheduler.util.Slots;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// BulkCancel cancels every appointment of a caregiver on a range of days, e.g. when the caregiver calls in sick.
+// Each shard of the range is changed by a single batch of set-based statements in one transaction: the caregiver
+// is made unavailable for the days, the appointments are deleted into a table variable and recorded as
+// cancellations, the doses are given back with one UPDATE grouped per vaccine and, if asked for, the patients
+// are put on the Waitlist to be rebooked. Vaccines and the waitlist live on the home shard, so for days stored on
+// another shard those two steps run in a second transaction on the home shard once the first has committed.
+public class BulkCancel {
+
+    // no SET NOCOUNT: it would stay on for the next user of the pooled connection and hide its update counts
+    private static final String declareCanceled = "DECLARE @canceled TABLE (id int, Time date, PatientName varchar(255), CaregiverName varchar(255)," +
+            " VaccineName varchar(255), Slot int);\n";
+
+    private static final String markUnavailable = "UPDATE [dbo].[Availabilities] SET Available = 0\n" +
+            "WHERE Username = ? AND Time BETWEEN ? AND ?;\n";
+
+    private static final String clearSlots = "UPDATE [dbo].[AvailabilitySlots] SET Slots0 = 0, Slots1 = 0\n" +
+            "WHERE Username = ? AND Time BETWEEN ? AND ?;\n";
+
+    private static final String removeAppointments = "DELETE FROM [dbo].[Appointments]\n" +
+            "OUTPUT deleted.id, deleted.Time, deleted.PatientName, deleted.CaregiverName, deleted.VaccineName," +
+            " deleted.Slot\n" +
+            "INTO @canceled\n" +
+            "WHERE CaregiverName = ? AND Time BETWEEN ? AND ?;\n" +
+            "INSERT INTO [dbo].[Cancellations] (id, Time, PatientName, CaregiverName, VaccineName, Slot)\n" +
+            "SELECT id, Time, PatientName, CaregiverName, VaccineName, Slot FROM @canceled;\n";
+
+    private static final String restoreDoses = "UPDATE v SET Doses = v.Doses + c.Canceled\n" +
+            "FROM [dbo].[Vaccines] v\n" +
+            "JOIN (SELECT VaccineName, COUNT(*) AS Canceled FROM @canceled GROUP BY VaccineName) AS c\n" +
+            "ON v.Name = c.VaccineName;\n";
+
+    private static final String requeuePatients = "INSERT INTO [dbo].[Waitlist] (PatientName, VaccineName, Time," +
+            " AppointmentId)\n" +
+            "SELECT PatientName, VaccineName, Time, id FROM @canceled;\n";
+
+    private static final String selectCanceled = "SELECT id, Time, PatientName, CaregiverName, VaccineName, Slot\n" +
+            "FROM @canceled ORDER BY id;";
+
+    // the home-shard half for days stored on other shards
+    private static final String addDoses = "UPDATE [dbo].[Vaccines] SET Doses = Doses + ? WHERE Name = ?;";
+
+    private static final String addToWaitlist = "INSERT INTO [dbo].[Waitlist] (PatientName, VaccineName, Time," +
+            " AppointmentId)\n" +
+            "VALUES (?, ?, ?, ?);";
+
+    private BulkCancel() {
+    }
+
+    // Cancels the caregiver's appointments from from to to (both inclusive) and returns them; with requeue the
+    // patients are added to the Waitlist
+    public static List<Appointment> cancelDays(String caregiver, Date from, Date to, boolean requeue)
+            throws SQLException {
+        if (to.before(from)) {
+            throw new IllegalArgumentException("The range ends before it starts");
+        }
+        List<Appointment> canceled = new ArrayList<>();
+        // consecutive days of the same shard are canceled together
+        LocalDate first = from.toLocalDate();
+        LocalDate last = to.toLocalDate();
+        LocalDate start = first;
+        int shard = ConnectionManager.shardFor(from);
+        for (LocalDate day = first.plusDays(1); !day.isAfter(last); day = day.plusDays(1)) {
+            int next = ConnectionManager.shardFor(Date.valueOf(day));
+            if (next != shard) {
+                canceled.addAll(cancelOnShard(shard, caregiver, Date.valueOf(start), Date.valueOf(day.minusDays(1)),
+                        requeue));
+                start = day;
+                shard = next;
+            }
+        }
+        canceled.addAll(cancelOnShard(shard, caregiver, Date.valueOf(start), to, requeue));
+        return canceled;
+    }
+
+    private static List<Appointment> cancelOnShard(int shard, String caregiver, Date from, Date to, boolean requeue)
+            throws SQLException {
+        boolean home = shard == 0;
+        String batch = declareCanceled + (Slots.enabled() ? clearSlots : markUnavailable) + removeAppointments
+                + (home ? restoreDoses : "") + (home && requeue ? requeuePatients : "") + selectCanceled;
+
+        List<Appointment> canceled = new ArrayList<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createShardConnection(shard);
+        try {
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement statement = con.prepareStatement(batch);
+                statement.setString(1, caregiver);
+                statement.setDate(2, from);
+                statement.setDate(3, to);
+                statement.setString(4, caregiver);
+                statement.setDate(5, from);
+                statement.setDate(6, to);
+                boolean isResultSet = statement.execute();
+                while (!isResultSet && statement.getUpdateCount() != -1) { // skip the counts of the changes
+                    isResultSet = statement.getMoreResults();
+                }
+                if (!isResultSet) {
+                    throw new SQLException("The cancellation batch returned no rows");
+                }
+                ResultSet resultSet = statement.getResultSet();
+                while (resultSet.next()) {
+                    canceled.add(new Appointment.AppointmentBuilder(resultSet.getInt("id"),
+                            resultSet.getDate("Time"), resultSet.getString("PatientName"),
+                            resultSet.getString("CaregiverName"), resultSet.getString("VaccineName"),
+                            resultSet.getInt("Slot")).build());
+                }
+                con.commit();
+            } catch (SQLException | RuntimeException e) {
+                con.rollback();
+                throw e;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+
+        // the appointments are gone: nothing from here on may fail the cancellation, or later shards of the range
+        // would not be canceled. Errors go to stderr with their stack traces, apart from the replies to the user
+        Map<String, Integer> doses = new LinkedHashMap<>();
+        for (Appointment appointment : canceled) {
+            doses.merge(appointment.getVaccineName(), 1, Integer::sum);
+        }
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        boolean restored = home || canceled.isEmpty();
+        if (!restored) {
+            try {
+                restoreOnHome(canceled, doses, requeue);
+                restored = true;
+            } catch (SQLException | ServiceBusyException e) {
+                System.err.println("Error occurred when restoring doses and requeuing canceled appointments;"
+                        + " the doses will be saved later");
+                e.printStackTrace();
+            }
+        }
+        for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+            if (restored) {
+                inventory.dosesRestored(entry.getKey(), entry.getValue());
+            } else {
+                inventory.releaseDoses(entry.getKey(), entry.getValue()); // saved with the next inventory flush
+            }
+        }
+        for (LocalDate day = from.toLocalDate(); !day.isAfter(to.toLocalDate()); day = day.plusDays(1)) {
+            ScheduleCache.getInstance().dateChanged(Date.valueOf(day));
+        }
+        try {
+            recordVersions(caregiver, canceled);
+        } catch (SQLException | ServiceBusyException e) {
+            System.err.println("Error occurred when recording canceled appointments");
+            e.printStackTrace();
+        }
+        for (Appointment appointment : canceled) {
+            EventBus.getInstance().appointmentCanceled(appointment.getId(), appointment.getTime(),
+                    appointment.getPatientName(), appointment.getCaregiverName(), appointment.getVaccineName(),
+                    appointment.getSlot());
+        }
+        return canceled;
+    }
+
+    // Gives the doses back and fills the waitlist on the home shard, for appointments canceled on another shard
+    private static void restoreOnHome(List<Appointment> canceled, Map<String, Integer> doses, boolean requeue)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement statement = con.prepareStatement(addDoses);
+                for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                    statement.setInt(1, entry.getValue());
+                    statement.setString(2, entry.getKey());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                if (requeue) {
+                    PreparedStatement waitlist = con.prepareStatement(addToWaitlist);
+                    for (Appointment appointment : canceled) {
+                        waitlist.setString(1, appointment.getPatientName());
+                        waitlist.setString(2, appointment.getVaccineName());
+                        waitlist.setDate(3, appointment.getTime());
+                        waitlist.setInt(4, appointment.getId());
+                        waitlist.addBatch();
+                    }
+                    waitlist.executeBatch();
+                }
+                con.commit();
+            } catch (SQLException | RuntimeException e) {
+                con.rollback();
+                throw e;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Bumps the appointment versions of the caregiver and the patients and drops their cached lists
+    private static void recordVersions(String caregiver, List<Appointment> canceled) throws SQLException {
+        AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, caregiver);
+        if (canceled.isEmpty()) {
+            return;
+        }
+        Set<String> patients = new LinkedHashSet<>();
+        for (Appointment appointment : canceled) {
+            patients.add(appointment.getPatientName());
+        }
+        for (String patient : patients) {
+            AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, patient);
+        }
+        ConnectionManager home = new ConnectionManager();
+        Connection con = home.createConnection();
+        try {
+            AppointmentCache.bumpVersions(con, AppointmentCache.PATIENT, patients);
+            AppointmentCache.bumpVersions(con, AppointmentCache.CAREGIVER, List.of(caregiver));
+        } finally {
+            home.closeConnection();
+        }
+    }
+}
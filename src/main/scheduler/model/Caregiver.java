@@ -1,6 +1,8 @@
 package scheduler.model;
 
+import scheduler.cache.ScheduleCache;
 import scheduler.db.ConnectionManager;
+import scheduler.util.LoginRateLimiter;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -56,7 +58,7 @@ public class Caregiver {
 
     public void uploadAvailability(Date d) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        Connection con = cm.createConnection(d);
 
         String addAvailability = "INSERT INTO Availabilities VALUES (? , ?, 1)";
         try {
@@ -65,6 +67,33 @@ public class Caregiver {
             statement.setString(2, this.username);
 
             statement.executeUpdate();
+            ScheduleCache.getInstance().dateChanged(d);
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Returns the username of the first caregiver (ordered by alphabet) still available on the day, or null
+    public static String findAvailable(Date d) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection(d);
+
+        String selectCaregiver = "SELECT TOP 1 a.Username\n" +
+                "FROM [dbo].[Availabilities] a\n" +
+                "WHERE a.Time = ?\n" +
+                "\tAND a.Available = 1\n" +
+                "ORDER BY a.Username";
+        try {
+            PreparedStatement statement = con.prepareStatement(selectCaregiver);
+            statement.setDate(1, d);
+            ResultSet resultSet = statement.executeQuery();
+            String username = null;
+            while (resultSet.next()) {
+                username = resultSet.getString("Username");
+            }
+            return username;
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
@@ -100,6 +129,9 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
+            // rejects the attempt with TooManyAttemptsException before any database or hashing work
+            LoginRateLimiter.getInstance().acquire("caregiver:" + this.username);
+
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
@@ -0,0 +1,438 @@
+package scheduler.model;
+
+import scheduler.cache.AppointmentCache;
+import scheduler.cache.ScheduleCache;
+import scheduler.cache.VaccineInventory;
+import scheduler.db.ConnectionManager;
+import scheduler.db.ReadSession;
+import scheduler.event.EventBus;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// GroupCommit writes concurrent reservations and cancellations (of whole days) together. Requests are queued
+// per shard; a committer thread takes the first waiting request, gathers more for up to GroupCommitWindowMillis
+// or until it has GroupCommitMaxBatch of them, and writes the whole batch in one transaction: cancellations
+// first, then reservations, which are matched to the free caregivers of their day in memory, with the
+// inserts, deletes and availability changes sent as batches. Every caller gets its own Result. If the batch
+// fails as a whole, its requests are retried one by one so a single bad request cannot fail the others.
+// Group commit is off unless GroupCommitWindowMillis is set.
+public class GroupCommit {
+
+    public enum Status { BOOKED, CANCELED, NO_CAREGIVER, NO_VACCINE, NO_DOSES, NOT_FOUND }
+
+    private static final int windowMillis = Util.intSetting("GroupCommitWindowMillis", 0);
+    private static final int maxBatch = Math.max(1, Util.intSetting("GroupCommitMaxBatch", 64));
+    private static final int queueSize = Util.intSetting("GroupCommitQueueSize", 1024);
+
+    // bookings per INSERT: each binds 4 parameters and SQL Server takes at most 2100 per statement
+    private static final int INSERT_ROWS = 500;
+
+    private static final String selectFree = "SELECT Username\n" +
+            "FROM [dbo].[Availabilities] WITH (UPDLOCK, ROWLOCK)\n" +
+            "WHERE Time = ? AND Available = 1\n" +
+            "ORDER BY Username;";
+
+    private static final String markUnavailable = "UPDATE [dbo].[Availabilities]\n" +
+            "SET Available = 0\n" +
+            "WHERE Time = ? AND Username = ?;";
+
+    private static final String markAvailable = "UPDATE [dbo].[Availabilities]\n" +
+            "SET Available = 1\n" +
+            "WHERE Time = ? AND Username = ?;";
+
+    private static final String removeAppointment = "DELETE FROM [dbo].[Appointments]\n" +
+            "OUTPUT deleted.id, deleted.Time, deleted.PatientName, deleted.CaregiverName, deleted.VaccineName," +
+            " deleted.Slot\n" +
+            "INTO [dbo].[Cancellations] (id, Time, PatientName, CaregiverName, VaccineName, Slot)\n" +
+            "WHERE id = ?;";
+
+    private static final Committer[] committers = new Committer[ConnectionManager.shardCount()];
+
+    private GroupCommit() {
+    }
+
+    public static boolean enabled() {
+        return windowMillis > 0;
+    }
+
+    // Books the first free caregiver (ordered by alphabet) of the day for the patient
+    public static CompletableFuture<Result> reserve(String patient, Date d, String vaccine) {
+        return wroteFor(ReadSession.current(),
+                committer(ConnectionManager.shardFor(d)).submit(new Request(0, d, patient, null, vaccine)));
+    }
+
+    // Cancels the appointment if it belongs to the patient or the caregiver (either may be null)
+    public static CompletableFuture<Result> cancel(int id, String patient, String caregiver) {
+        return wroteFor(ReadSession.current(), committer(ConnectionManager.shardOfAppointment(id))
+                .submit(new Request(id, null, patient, caregiver, null)));
+    }
+
+    // The committer thread writes for the caller, so the caller's session is told about the write
+    private static CompletableFuture<Result> wroteFor(ReadSession session, CompletableFuture<Result> result) {
+        return session == null ? result : result.whenComplete((r, e) -> session.wrote());
+    }
+
+    private static synchronized Committer committer(int shard) {
+        if (committers[shard] == null) {
+            committers[shard] = new Committer(shard);
+        }
+        return committers[shard];
+    }
+
+    // The outcome of one request: the appointment id and caregiver of a booking, or why it was not done
+    public static class Result {
+        private final Status status;
+        private final int appointmentId;
+        private final String caregiver;
+
+        private Result(Status status, int appointmentId, String caregiver) {
+            this.status = status;
+            this.appointmentId = appointmentId;
+            this.caregiver = caregiver;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getAppointmentId() {
+            return appointmentId;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+    }
+
+    // A reservation (id 0) or a cancellation; for cancellations the remaining fields are filled in from the
+    // appointment while the batch runs
+    private static class Request {
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private final int id;
+        private Date d;
+        private String patient;
+        private String caregiver;
+        private String vaccine;
+        private final String requestingPatient;
+        private final String requestingCaregiver;
+
+        private Request(int id, Date d, String patient, String caregiver, String vaccine) {
+            this.id = id;
+            this.d = d;
+            this.patient = patient;
+            this.caregiver = caregiver;
+            this.vaccine = vaccine;
+            this.requestingPatient = patient;
+            this.requestingCaregiver = caregiver;
+        }
+
+        private boolean isCancel() {
+            return id != 0;
+        }
+    }
+
+    private static class Committer implements Runnable {
+        private final int shard;
+        private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(queueSize);
+
+        private Committer(int shard) {
+            this.shard = shard;
+            Thread thread = new Thread(this, "group-commit-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private CompletableFuture<Result> submit(Request request) {
+            if (!queue.offer(request)) {
+                request.result.completeExceptionally(new SQLException("Too many pending bookings"));
+            }
+            return request.result;
+        }
+
+        @Override
+        public void run() {
+            List<Request> batch = new ArrayList<>(maxBatch);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                    while (batch.size() < maxBatch) {
+                        queue.drainTo(batch, maxBatch - batch.size());
+                        long left = deadline - System.nanoTime();
+                        if (batch.size() >= maxBatch || left <= 0) {
+                            break;
+                        }
+                        Request next = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    commit(batch);
+                } catch (SQLException e) {
+                    if (batch.size() == 1) {
+                        batch.get(0).result.completeExceptionally(e);
+                    } else {
+                        for (Request request : batch) { // find the request that failed the batch
+                            try {
+                                commit(List.of(request));
+                            } catch (SQLException single) {
+                                request.result.completeExceptionally(single);
+                            } catch (RuntimeException single) {
+                                request.result.completeExceptionally(single);
+                            }
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    for (Request request : batch) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+        }
+
+        // Writes the batch in one transaction and completes the futures of its requests once it is committed
+        private void commit(List<Request> batch) throws SQLException {
+            Map<Request, Result> results = new HashMap<>();
+            List<Request> canceled = new ArrayList<>();
+            List<Request> booked = new ArrayList<>();
+            VaccineInventory inventory = VaccineInventory.getInstance();
+
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createShardConnection(shard);
+            try {
+                con.setAutoCommit(false);
+                try {
+                    cancelAll(con, batch, results, canceled);
+                    reserveAll(con, batch, results, booked, inventory);
+                    con.commit();
+                } catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    for (Request request : booked) {
+                        inventory.releaseDose(request.vaccine); // the doses of a failed batch go back
+                    }
+                    throw e;
+                }
+            } finally {
+                cm.closeConnection();
+            }
+
+            // the batch is committed: nothing from here on may fail it, or it would be retried
+            try {
+                for (Request request : canceled) {
+                    inventory.releaseDose(request.vaccine);
+                }
+                recordVersions(canceled, booked);
+            } catch (SQLException e) {
+                // stderr, like the stack trace: the committer runs while the user may be typing at the prompt
+                System.err.println("Error occurred when recording committed bookings");
+                e.printStackTrace();
+            }
+            ScheduleCache schedules = ScheduleCache.getInstance();
+            for (Request request : canceled) {
+                schedules.dateChanged(request.d);
+            }
+            for (Request request : booked) {
+                schedules.dateChanged(request.d);
+            }
+            for (Request request : canceled) {
+                EventBus.getInstance().appointmentCanceled(request.id, request.d, request.patient, request.caregiver,
+                        request.vaccine, 0);
+            }
+            for (Request request : booked) {
+                EventBus.getInstance().appointmentReserved(new Appointment.AppointmentBuilder(
+                        results.get(request).appointmentId, request.d, request.patient, request.caregiver,
+                        request.vaccine, 0).build());
+            }
+            for (Request request : batch) {
+                request.result.complete(results.get(request));
+            }
+        }
+
+        private void cancelAll(Connection con, List<Request> batch, Map<Request, Result> results,
+                               List<Request> canceled) throws SQLException {
+            List<Request> cancels = new ArrayList<>();
+            for (Request request : batch) {
+                if (request.isCancel()) {
+                    cancels.add(request);
+                }
+            }
+            if (cancels.isEmpty()) {
+                return;
+            }
+            StringBuilder select = new StringBuilder("SELECT id, Time, PatientName, CaregiverName, VaccineName\n" +
+                    "FROM [dbo].[Appointments] WITH (UPDLOCK, ROWLOCK)\nWHERE id IN (");
+            for (int i = 0; i < cancels.size(); i++) {
+                select.append(i == 0 ? "?" : ", ?");
+            }
+            PreparedStatement statement = con.prepareStatement(select.append(");").toString());
+            for (int i = 0; i < cancels.size(); i++) {
+                statement.setInt(i + 1, cancels.get(i).id);
+            }
+            Map<Integer, Request> found = new HashMap<>();
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                Request appointment = new Request(resultSet.getInt("id"), resultSet.getDate("Time"),
+                        resultSet.getString("PatientName"), resultSet.getString("CaregiverName"),
+                        resultSet.getString("VaccineName"));
+                found.put(appointment.id, appointment);
+            }
+
+            PreparedStatement delete = con.prepareStatement(removeAppointment);
+            PreparedStatement free = con.prepareStatement(markAvailable);
+            for (Request request : cancels) {
+                Request appointment = found.remove(request.id); // a second cancel of the same id finds nothing
+                if (appointment == null || !(appointment.patient.equals(request.requestingPatient)
+                        || appointment.caregiver.equals(request.requestingCaregiver))) {
+                    if (appointment != null) {
+                        found.put(appointment.id, appointment);
+                    }
+                    results.put(request, new Result(Status.NOT_FOUND, request.id, null));
+                    continue;
+                }
+                request.d = appointment.d;
+                request.patient = appointment.patient;
+                request.caregiver = appointment.caregiver;
+                request.vaccine = appointment.vaccine;
+                delete.setInt(1, request.id);
+                delete.addBatch();
+                free.setDate(1, request.d);
+                free.setString(2, request.caregiver);
+                free.addBatch();
+                canceled.add(request);
+                results.put(request, new Result(Status.CANCELED, request.id, request.caregiver));
+            }
+            if (!canceled.isEmpty()) {
+                delete.executeBatch();
+                free.executeBatch();
+            }
+        }
+
+        private void reserveAll(Connection con, List<Request> batch, Map<Request, Result> results,
+                                List<Request> booked, VaccineInventory inventory) throws SQLException {
+            // the free caregivers of every day in the batch, each handed out once in the order of the requests
+            Map<Date, List<String>> free = new HashMap<>();
+            PreparedStatement selectStatement = con.prepareStatement(selectFree);
+            for (Request request : batch) {
+                if (request.isCancel() || free.containsKey(request.d)) {
+                    continue;
+                }
+                selectStatement.setDate(1, request.d);
+                ResultSet resultSet = selectStatement.executeQuery();
+                List<String> caregivers = new ArrayList<>();
+                while (resultSet.next()) {
+                    caregivers.add(resultSet.getString("Username"));
+                }
+                free.put(request.d, caregivers);
+            }
+
+            for (Request request : batch) {
+                if (request.isCancel()) {
+                    continue;
+                }
+                List<String> caregivers = free.get(request.d);
+                if (caregivers.isEmpty()) {
+                    results.put(request, new Result(Status.NO_CAREGIVER, 0, null));
+                } else if (inventory.getAvailableDoses(request.vaccine) == null) {
+                    results.put(request, new Result(Status.NO_VACCINE, 0, null));
+                } else if (!inventory.tryReserveDose(request.vaccine)) {
+                    results.put(request, new Result(Status.NO_DOSES, 0, null));
+                } else {
+                    request.caregiver = caregivers.remove(0);
+                    booked.add(request);
+                }
+            }
+            if (booked.isEmpty()) {
+                return;
+            }
+
+            // one insert per INSERT_ROWS bookings; the ids come back through OUTPUT
+            Map<String, Integer> ids = new HashMap<>();
+            for (int start = 0; start < booked.size(); start += INSERT_ROWS) {
+                insertBookings(con, booked.subList(start, Math.min(booked.size(), start + INSERT_ROWS)), ids);
+            }
+            PreparedStatement taken = con.prepareStatement(markUnavailable);
+            for (Request request : booked) {
+                taken.setDate(1, request.d);
+                taken.setString(2, request.caregiver);
+                taken.addBatch();
+            }
+            taken.executeBatch();
+            for (Request request : booked) {
+                results.put(request, new Result(Status.BOOKED, ids.get(request.d + "/" + request.caregiver),
+                        request.caregiver));
+            }
+        }
+
+        // Inserts the bookings with one statement and adds their ids to ids, by day and caregiver
+        private void insertBookings(Connection con, List<Request> bookings, Map<String, Integer> ids)
+                throws SQLException {
+            StringBuilder insert = new StringBuilder("INSERT [dbo].[Appointments] (Time, PatientName, CaregiverName," +
+                    " VaccineName)\nOUTPUT inserted.id, inserted.Time, inserted.CaregiverName\nVALUES ");
+            for (int i = 0; i < bookings.size(); i++) {
+                insert.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            }
+            PreparedStatement statement = con.prepareStatement(insert.append(";").toString());
+            int index = 1;
+            for (Request request : bookings) {
+                statement.setDate(index++, request.d);
+                statement.setString(index++, request.patient);
+                statement.setString(index++, request.caregiver);
+                statement.setString(index++, request.vaccine);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                ids.put(resultSet.getDate("Time") + "/" + resultSet.getString("CaregiverName"), resultSet.getInt("id"));
+            }
+        }
+
+        // Bumps the appointment versions of everyone whose appointments changed and drops their cached lists
+        private void recordVersions(List<Request> canceled, List<Request> booked) throws SQLException {
+            Set<String> patients = new LinkedHashSet<>();
+            Set<String> caregivers = new LinkedHashSet<>();
+            for (List<Request> requests : List.of(canceled, booked)) {
+                for (Request request : requests) {
+                    patients.add(request.patient);
+                    caregivers.add(request.caregiver);
+                }
+            }
+            for (String patient : patients) {
+                AppointmentCache.getInstance().evict(AppointmentCache.PATIENT, patient);
+            }
+            for (String caregiver : caregivers) {
+                AppointmentCache.getInstance().evict(AppointmentCache.CAREGIVER, caregiver);
+            }
+            if (patients.isEmpty()) {
+                return;
+            }
+            ConnectionManager home = new ConnectionManager();
+            Connection con = home.createConnection();
+            try {
+                AppointmentCache.bumpVersions(con, AppointmentCache.PATIENT, patients);
+                AppointmentCache.bumpVersions(con, AppointmentCache.CAREGIVER, caregivers);
+            } finally {
+                home.closeConnection();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.util.LoginRateLimiter;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -82,6 +83,9 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
+            // rejects the attempt with TooManyAttemptsException before any database or hashing work
+            LoginRateLimiter.getInstance().acquire("patient:" + this.username);
+
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
@@ -0,0 +1,125 @@
+package scheduler.model;
+
+import scheduler.cache.ScheduleCache;
+import scheduler.db.ConnectionManager;
+import scheduler.util.Slots;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// SlotAvailability reads and changes the free-slot bitmaps of the AvailabilitySlots table (see Slots).
+// Claiming and releasing a slot are single UPDATE statements that test and flip the slot's bit, so two
+// sessions can never claim the same slot.
+public class SlotAvailability {
+
+    private static final String addSlots = "MERGE AvailabilitySlots AS a\n" +
+            "USING (SELECT ? AS Time, ? AS Username) AS s\n" +
+            "ON a.Time = s.Time AND a.Username = s.Username\n" +
+            "WHEN MATCHED THEN UPDATE SET Slots0 = a.Slots0 | ?, Slots1 = a.Slots1 | ?\n" +
+            "WHEN NOT MATCHED THEN INSERT (Time, Username, Slots0, Slots1) VALUES (s.Time, s.Username, ?, ?);";
+
+    private static final String[] claimSlot = {
+            "UPDATE AvailabilitySlots SET Slots0 = Slots0 & ~? WHERE Time = ? AND Username = ? AND (Slots0 & ?) <> 0;",
+            "UPDATE AvailabilitySlots SET Slots1 = Slots1 & ~? WHERE Time = ? AND Username = ? AND (Slots1 & ?) <> 0;"};
+
+    private static final String[] releaseSlot = {
+            "UPDATE AvailabilitySlots SET Slots0 = Slots0 | ? WHERE Time = ? AND Username = ?;",
+            "UPDATE AvailabilitySlots SET Slots1 = Slots1 | ? WHERE Time = ? AND Username = ?;"};
+
+    // the first caregiver (ordered by alphabet) with any free slot, or with the given slot free
+    private static final String findAnySlot = "SELECT TOP 1 Username, Slots0, Slots1\n" +
+            "FROM AvailabilitySlots\n" +
+            "WHERE Time = ? AND Username > ? AND (Slots0 <> 0 OR Slots1 <> 0)\n" +
+            "ORDER BY Username;";
+
+    private static final String[] findSlot = {
+            "SELECT TOP 1 Username, Slots0, Slots1\n" +
+                    "FROM AvailabilitySlots\n" +
+                    "WHERE Time = ? AND Username > ? AND (Slots0 & ?) <> 0\n" +
+                    "ORDER BY Username;",
+            "SELECT TOP 1 Username, Slots0, Slots1\n" +
+                    "FROM AvailabilitySlots\n" +
+                    "WHERE Time = ? AND Username > ? AND (Slots1 & ?) <> 0\n" +
+                    "ORDER BY Username;"};
+
+    private final String username;
+    private final long[] freeSlots;
+
+    private SlotAvailability(String username, long[] freeSlots) {
+        this.username = username;
+        this.freeSlots = freeSlots;
+    }
+
+    // Getters
+    public String getUsername() {
+        return username;
+    }
+
+    public long[] getFreeSlots() {
+        return freeSlots;
+    }
+
+    // Marks the slots of the bitmap free for the caregiver on the day, keeping slots that are already free
+    public static void upload(String username, Date d, long[] slots) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection(d);
+        try {
+            PreparedStatement statement = con.prepareStatement(addSlots);
+            statement.setDate(1, d);
+            statement.setString(2, username);
+            statement.setLong(3, slots[0]);
+            statement.setLong(4, slots[1]);
+            statement.setLong(5, slots[0]);
+            statement.setLong(6, slots[1]);
+            statement.executeUpdate();
+            ScheduleCache.getInstance().dateChanged(d);
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Returns the first caregiver after the given username (ordered by alphabet) who has a free slot on the day,
+    // or who has the given slot free when slot is not -1; returns null if there is none
+    public static SlotAvailability findAfter(Connection con, Date d, String afterUsername, int slot)
+            throws SQLException {
+        PreparedStatement statement;
+        if (slot < 0) {
+            statement = con.prepareStatement(findAnySlot);
+        } else {
+            statement = con.prepareStatement(findSlot[Slots.word(slot)]);
+            statement.setLong(3, Slots.bit(slot));
+        }
+        statement.setDate(1, d);
+        statement.setString(2, afterUsername);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            return null;
+        }
+        return new SlotAvailability(resultSet.getString("Username"),
+                new long[]{resultSet.getLong("Slots0"), resultSet.getLong("Slots1")});
+    }
+
+    // Takes the slot if it is still free; returns false if another session took it first
+    public static boolean claim(Connection con, Date d, String username, int slot) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(claimSlot[Slots.word(slot)]);
+        statement.setLong(1, Slots.bit(slot));
+        statement.setDate(2, d);
+        statement.setString(3, username);
+        statement.setLong(4, Slots.bit(slot));
+        return statement.executeUpdate() == 1;
+    }
+
+    // Makes the slot free again, e.g. after a cancellation
+    public static void release(Connection con, Date d, String username, int slot) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(releaseSlot[Slots.word(slot)]);
+        statement.setLong(1, Slots.bit(slot));
+        statement.setDate(2, d);
+        statement.setString(3, username);
+        statement.executeUpdate();
+    }
+}
@@ -57,10 +57,11 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        // apply the change as a delta so concurrent updates from other sessions are not overwritten
+        String addAvailability  = "UPDATE vaccines SET Doses = Doses + ? WHERE name = ?;";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+            PreparedStatement statement = con.prepareStatement(addAvailability);
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
             statement.executeUpdate();
         } catch (SQLException e) {
@@ -79,12 +80,17 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        // apply the change as a delta, and only if the doses are still there in the database
+        String removeAvailability  = "UPDATE vaccines SET Doses = Doses - ? WHERE name = ? AND Doses >= ?;";
         try {
             PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            statement.setInt(3, num);
+            if (statement.executeUpdate() == 0) {
+                this.availableDoses += num;
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
@@ -0,0 +1,45 @@
+package scheduler.reminder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+// FileReminderSink appends one line per reminder to a file, for a mailer to pick up or for trying reminders out:
+// the time it was sent, the appointment id, the patient, the vaccine and when the appointment starts
+public class FileReminderSink implements ReminderSink {
+
+    private final BufferedWriter writer;
+
+    public FileReminderSink(Path path) throws IOException {
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void send(List<Reminder> reminders) throws IOException {
+        String now = Instant.now().toString();
+        for (Reminder reminder : reminders) {
+            writer.write(now);
+            writer.write(' ');
+            writer.write(Integer.toString(reminder.getAppointmentId()));
+            writer.write(' ');
+            writer.write(reminder.getPatientName());
+            writer.write(' ');
+            writer.write(reminder.getVaccineName());
+            writer.write(' ');
+            writer.write(reminder.getStartsAt().toString());
+            writer.newLine();
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,54 @@
+package scheduler.reminder;
+
+import java.sql.Date;
+import java.time.Instant;
+
+// Reminder tells a patient about an upcoming appointment; startsAt is when the appointment begins (the start of
+// its slot, or the start of the day when whole days are booked)
+public class Reminder {
+    private final int appointmentId;
+    private final String patientName;
+    private final String vaccineName;
+    private final Date time;
+    private final Instant startsAt;
+
+    Reminder(int appointmentId, String patientName, String vaccineName, Date time, Instant startsAt) {
+        this.appointmentId = appointmentId;
+        this.patientName = patientName;
+        this.vaccineName = vaccineName;
+        this.time = time;
+        this.startsAt = startsAt;
+    }
+
+    // Getters
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public Instant getStartsAt() {
+        return startsAt;
+    }
+
+    @Override
+    public String toString() {
+        return "Reminder{" +
+                "appointmentId=" + appointmentId +
+                ", patientName='" + patientName + '\'' +
+                ", vaccineName='" + vaccineName + '\'' +
+                ", time=" + time +
+                ", startsAt=" + startsAt +
+                '}';
+    }
+}
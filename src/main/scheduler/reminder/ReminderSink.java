@@ -0,0 +1,15 @@
+package scheduler.reminder;
+
+import java.io.IOException;
+import java.util.List;
+
+// ReminderSink delivers reminders to the patients, e.g. by mail or text message. Reminders come in batches of the
+// ones that became due together, always from the same thread
+public interface ReminderSink {
+
+    void send(List<Reminder> reminders) throws IOException;
+
+    // Called once no more reminders will be sent
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,244 @@
+package scheduler.reminder;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ServiceBusyException;
+import scheduler.event.Event;
+import scheduler.event.EventBus;
+import scheduler.event.EventConsumer;
+import scheduler.event.EventType;
+import scheduler.model.AsyncDataAccess;
+import scheduler.util.ErrorLog;
+import scheduler.util.NameDictionary;
+import scheduler.util.Slots;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Reminders sends every patient a reminder ReminderLeadMinutes (default 1440) before their appointment starts.
+// The upcoming appointments of all shards are read once at start; from then on reservations and cancellations
+// arrive from the EventBus and are added to or removed from a TimingWheel, which a background thread advances
+// every ReminderTickSeconds (default 60), sending the reminders that became due to the ReminderSink in batches of
+// up to ReminderBatchSize (default 1000). The wheel has ReminderWheelSize (default 1024) ticks per turn and
+// ReminderCoarseSize (default 512) turns on its coarse level. Events that arrive while the appointments are still
+// being read are applied after them, so nothing is missed or reminded of twice.
+public class Reminders implements EventConsumer {
+
+    private static final String selectUpcoming = "SELECT id, Time, PatientName, VaccineName, Slot\n" +
+            "FROM [dbo].[Appointments]\n" +
+            "WHERE Time >= ?;";
+
+    private static final long leadMillis = TimeUnit.MINUTES.toMillis(Util.intSetting("ReminderLeadMinutes", 1440));
+    private static final long tickMillis =
+            TimeUnit.SECONDS.toMillis(Math.max(1, Util.intSetting("ReminderTickSeconds", 60)));
+    private static final int batchSize = Math.max(1, Util.intSetting("ReminderBatchSize", 1000));
+    private static final int fetchSize = Util.intSetting("ReminderFetchSize", 10_000);
+
+    private final ReminderSink sink;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final ScheduledExecutorService ticker;
+
+    // guarded by this
+    private final TimingWheel wheel;
+    private final List<Runnable> early = new ArrayList<>();
+    private boolean loaded = false;
+
+    private Reminders(ReminderSink sink) {
+        this.sink = sink;
+        this.wheel = new TimingWheel(Util.intSetting("ReminderWheelSize", 1024),
+                Util.intSetting("ReminderCoarseSize", 512), System.currentTimeMillis() / tickMillis);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reminders");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Starts sending reminders to the file named by the ReminderLog environment variable, if it is set
+    public static void start() {
+        String file = System.getenv("ReminderLog");
+        if (file == null || file.isBlank()) {
+            return;
+        }
+        try {
+            start(new FileReminderSink(Paths.get(file)));
+        } catch (IOException e) {
+            System.out.println("Could not open the reminder log " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Starts sending reminders to the sink; the upcoming appointments are read in the background
+    public static Reminders start(ReminderSink sink) {
+        Reminders reminders = new Reminders(sink);
+        // subscribe before reading, so no change made while reading is lost
+        EventBus.getInstance().subscribe("reminders", reminders, EventBus.Backpressure.KEEP);
+        reminders.ticker.scheduleAtFixedRate(reminders::tick, 0, tickMillis, TimeUnit.MILLISECONDS);
+        return reminders;
+    }
+
+    // The number of reminders waiting to be sent
+    public synchronized int pending() {
+        return wheel.size();
+    }
+
+    @Override
+    public void onEvent(Event event, boolean endOfBatch) {
+        Runnable change;
+        if (event.getType() == EventType.APPOINTMENT_RESERVED) {
+            TimingWheel.Entry entry = entry(event.getAppointmentId(), event.getPatient(), event.getVaccine(),
+                    event.getDay(), event.getSlot());
+            if (entry == null) {
+                return;
+            }
+            change = () -> wheel.add(entry);
+        } else if (event.getType() == EventType.APPOINTMENT_CANCELED) {
+            int id = event.getAppointmentId();
+            change = () -> wheel.remove(id);
+        } else {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                change.run();
+            } else {
+                early.add(change);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        try {
+            sink.close();
+        } catch (IOException e) {
+            ErrorLog.report("Could not close the reminder sink", e);
+        }
+    }
+
+    private void tick() {
+        try {
+            if (!isLoaded() && !load()) {
+                return;
+            }
+            List<TimingWheel.Entry> fired = new ArrayList<>();
+            synchronized (this) {
+                wheel.advance(System.currentTimeMillis() / tickMillis, fired);
+            }
+            List<Reminder> batch = new ArrayList<>();
+            for (TimingWheel.Entry entry : fired) {
+                batch.add(new Reminder(entry.id, NameDictionary.PATIENTS.name(entry.patient),
+                        NameDictionary.VACCINES.name(entry.vaccine), Date.valueOf(LocalDate.ofEpochDay(entry.day)),
+                        Instant.ofEpochMilli(startMillis(entry.day, entry.slot))));
+                if (batch.size() == batchSize) {
+                    send(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        } catch (RuntimeException e) {
+            // keep ticking: a failed tick must not stop the reminders that follow
+            ErrorLog.report("Error occurred when sending reminders", e);
+        }
+    }
+
+    private void send(List<Reminder> batch) {
+        try {
+            sink.send(batch);
+        } catch (IOException e) {
+            ErrorLog.report("Error occurred when sending a batch of reminders", e);
+        }
+    }
+
+    private synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    // Reads the upcoming appointments of every shard in parallel and puts them on the wheel, followed by the changes
+    // that arrived meanwhile; returns false if they could not be read, to try again on the next tick
+    private boolean load() {
+        Date today = Date.valueOf(LocalDate.now(zone));
+        List<TimingWheel.Entry> upcoming = new ArrayList<>();
+        try {
+            List<CompletableFuture<List<TimingWheel.Entry>>> reads = new ArrayList<>();
+            for (int shard = 0; shard < ConnectionManager.shardCount(); shard++) {
+                int target = shard;
+                reads.add(AsyncDataAccess.run(() -> readShard(target, today)));
+            }
+            for (CompletableFuture<List<TimingWheel.Entry>> read : reads) {
+                upcoming.addAll(AsyncDataAccess.await(read));
+            }
+        } catch (SQLException | ServiceBusyException e) {
+            ErrorLog.report("Error occurred when reading upcoming appointments for reminders, will retry", e);
+            return false;
+        }
+        synchronized (this) {
+            for (TimingWheel.Entry entry : upcoming) {
+                wheel.add(entry);
+            }
+            for (Runnable change : early) {
+                change.run();
+            }
+            early.clear();
+            loaded = true;
+        }
+        return true;
+    }
+
+    private List<TimingWheel.Entry> readShard(int shard, Date today) throws SQLException {
+        List<TimingWheel.Entry> entries = new ArrayList<>();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            // the primary, not the replica: a replica behind the events would bring back canceled appointments
+            Connection con = cm.createShardConnection(shard);
+            PreparedStatement statement = con.prepareStatement(selectUpcoming, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            statement.setDate(1, today);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                TimingWheel.Entry entry = entry(resultSet.getInt("id"),
+                        NameDictionary.PATIENTS.intern(resultSet.getString("PatientName")),
+                        NameDictionary.VACCINES.intern(resultSet.getString("VaccineName")),
+                        (int) resultSet.getDate("Time").toLocalDate().toEpochDay(), resultSet.getInt("Slot"));
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return entries;
+    }
+
+    // The wheel entry of an appointment, or null if the appointment has started already
+    private TimingWheel.Entry entry(int id, int patient, int vaccine, int day, int slot) {
+        long start = startMillis(day, slot);
+        if (start <= System.currentTimeMillis()) {
+            return null;
+        }
+        long due = Math.floorDiv(start - leadMillis + tickMillis - 1, tickMillis); // never early
+        return new TimingWheel.Entry(id, patient, vaccine, day, slot, due);
+    }
+
+    private long startMillis(int day, int slot) {
+        return LocalDate.ofEpochDay(day).atStartOfDay(zone).plusMinutes(Slots.enabled() ? Slots.startMinute(slot) : 0)
+                .toInstant().toEpochMilli();
+    }
+}
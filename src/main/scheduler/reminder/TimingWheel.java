@@ -0,0 +1,152 @@
+package scheduler.reminder;
+
+import scheduler.util.IntObjectMap;
+
+import java.util.List;
+
+// TimingWheel keeps pending reminders by the tick they are due in, on two hashed wheels of buckets. The fine wheel
+// has a bucket per tick of the current revolution (fineSize ticks); reminders due later wait in the bucket of their
+// revolution on the coarse wheel and are moved down when that revolution starts. Buckets are doubly linked lists and
+// entries are found by appointment id, so adding and removing are O(1), and a tick only looks at its own bucket
+// (plus one coarse bucket per revolution), however many reminders are pending. Not thread-safe; callers
+// synchronize.
+class TimingWheel {
+
+    private final int fineBits;
+    private final long fineMask;
+    private final int coarseMask;
+    private final Entry[] fine;
+    private final Entry[] coarse;
+    private final IntObjectMap<Entry> entries = new IntObjectMap<>();
+
+    // the last tick whose reminders have been taken
+    private long tick;
+
+    // fineSize and coarseSize are rounded up to powers of two
+    TimingWheel(int fineSize, int coarseSize, long tick) {
+        this.fineBits = 32 - Integer.numberOfLeadingZeros(Math.max(2, fineSize) - 1);
+        this.fineMask = (1L << fineBits) - 1;
+        int coarseLength = Integer.highestOneBit(Math.max(2, coarseSize) - 1) << 1;
+        this.coarseMask = coarseLength - 1;
+        this.fine = new Entry[1 << fineBits];
+        this.coarse = new Entry[coarseLength];
+        this.tick = tick;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // Adds the entry, replacing any entry of the same appointment; entries already due are taken with the next tick
+    void add(Entry entry) {
+        remove(entry.id);
+        if (entry.due <= tick) {
+            entry.due = tick + 1;
+        }
+        entries.put(entry.id, entry);
+        place(entry);
+    }
+
+    // Removes the entry of the appointment; returns false if there was none
+    boolean remove(int id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    // Moves the wheel forward to the given tick and adds the entries that became due to fired, in tick order
+    void advance(long to, List<Entry> fired) {
+        while (tick < to) {
+            tick++;
+            if ((tick & fineMask) == 0) {
+                cascade(tick >>> fineBits);
+            }
+            int bucket = (int) (tick & fineMask);
+            Entry entry = fine[bucket];
+            fine[bucket] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = null;
+                entry.next = null;
+                entries.remove(entry.id);
+                fired.add(entry);
+                entry = next;
+            }
+        }
+    }
+
+    // Moves the entries of a revolution that has just started from the coarse wheel to the fine wheel
+    private void cascade(long revolution) {
+        Entry entry = coarse[(int) (revolution & coarseMask)];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.due >>> fineBits == revolution) { // the others are due in a later turn of the coarse wheel
+                unlink(entry);
+                place(entry);
+            }
+            entry = next;
+        }
+    }
+
+    private void place(Entry entry) {
+        long revolution = entry.due >>> fineBits;
+        Entry[] wheel;
+        if (revolution == tick >>> fineBits) {
+            wheel = fine;
+            entry.bucket = (int) (entry.due & fineMask);
+            entry.coarse = false;
+        } else {
+            wheel = coarse;
+            entry.bucket = (int) (revolution & coarseMask);
+            entry.coarse = true;
+        }
+        Entry head = wheel[entry.bucket];
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        wheel[entry.bucket] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        Entry[] wheel = entry.coarse ? coarse : fine;
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    // A pending reminder: the appointment, with its names as NameDictionary ids, and the tick it is due in
+    static class Entry {
+        final int id;
+        final int patient;
+        final int vaccine;
+        final int day;
+        final int slot;
+        long due;
+
+        private Entry prev;
+        private Entry next;
+        private int bucket;
+        private boolean coarse;
+
+        Entry(int id, int patient, int vaccine, int day, int slot, long due) {
+            this.id = id;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.day = day;
+            this.slot = slot;
+            this.due = due;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package scheduler.report;
+
+import scheduler.cache.VaccineInventory;
+import scheduler.db.ConnectionManager;
+import scheduler.model.AsyncDataAccess;
+import scheduler.util.IntList;
+import scheduler.util.NameDictionary;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+// CapacityReport counts, for a range of days, the slots offered, booked and canceled per day, per caregiver and
+// per vaccine, the doses left and the shortfall to expect if the remaining free slots get booked. Each table
+// (current and archived rows) is streamed once from every shard in parallel into int columns of dictionary ids,
+// grouped by day, and counted by a fork/join task per ReportDaysPerTask (default 31) days.
+// A whole day of availability counts as one slot; with time slots every slot counts.
+public class CapacityReport {
+
+    private static final int fetchSize = Util.intSetting("ReportFetchSize", 10_000);
+    private static final int daysPerTask = Math.max(1, Util.intSetting("ReportDaysPerTask", 31));
+
+    private static final String selectFree = "SELECT Time, Username, CAST(Available AS int) AS Free\n" +
+            "FROM [dbo].[Availabilities] WHERE Time BETWEEN ? AND ?\n" +
+            "UNION ALL SELECT Time, Username, CAST(Available AS int) AS Free\n" +
+            "FROM [dbo].[AvailabilitiesArchive] WHERE Time BETWEEN ? AND ?;";
+
+    private static final String selectFreeSlots = "SELECT Time, Username, Slots0, Slots1\n" +
+            "FROM [dbo].[AvailabilitySlots] WHERE Time BETWEEN ? AND ?\n" +
+            "UNION ALL SELECT Time, Username, Slots0, Slots1\n" +
+            "FROM [dbo].[AvailabilitySlotsArchive] WHERE Time BETWEEN ? AND ?;";
+
+    private static final String selectBooked = "SELECT Time, CaregiverName, VaccineName\n" +
+            "FROM [dbo].[Appointments] WHERE Time BETWEEN ? AND ?\n" +
+            "UNION ALL SELECT Time, CaregiverName, VaccineName\n" +
+            "FROM [dbo].[AppointmentsArchive] WHERE Time BETWEEN ? AND ?;";
+
+    private static final String selectCanceled = "SELECT Time, CaregiverName, VaccineName\n" +
+            "FROM [dbo].[Cancellations] WHERE Time BETWEEN ? AND ?\n" +
+            "UNION ALL SELECT Time, CaregiverName, VaccineName\n" +
+            "FROM [dbo].[CancellationsArchive] WHERE Time BETWEEN ? AND ?;";
+
+    private static final String selectVaccines = "SELECT Name, Doses FROM [dbo].[Vaccines];";
+
+    private final LocalDate from;
+    private final Counters counters;
+    private final Map<Integer, Integer> doses;
+
+    private CapacityReport(LocalDate from, Counters counters, Map<Integer, Integer> doses) {
+        this.from = from;
+        this.counters = counters;
+        this.doses = doses;
+    }
+
+    // Reads the tables for the days from from to to (both inclusive) and counts them
+    public static CapacityReport run(Date from, Date to) throws SQLException {
+        LocalDate first = from.toLocalDate();
+        int days = (int) ChronoUnit.DAYS.between(first, to.toLocalDate()) + 1;
+        if (days <= 0) {
+            throw new IllegalArgumentException("The report ends before it starts");
+        }
+
+        List<CompletableFuture<Columns[]>> reads = new ArrayList<>();
+        for (int shard = 0; shard < ConnectionManager.shardCount(); shard++) {
+            int target = shard;
+            reads.add(AsyncDataAccess.run(() -> readShard(target, from, to)));
+        }
+        Map<Integer, Integer> doses = readDoses();
+        Columns free = new Columns();
+        Columns booked = new Columns();
+        Columns canceled = new Columns();
+        for (CompletableFuture<Columns[]> read : reads) {
+            Columns[] shard = AsyncDataAccess.await(read);
+            free.append(shard[0]);
+            booked.append(shard[1]);
+            canceled.append(shard[2]);
+        }
+
+        int today = (int) Math.max(0, Math.min(days, ChronoUnit.DAYS.between(first, LocalDate.now())));
+        ReportTask.Tables tables = new ReportTask.Tables(free.byDay(days), booked.byDay(days),
+                canceled.byDay(days), days, NameDictionary.CAREGIVERS.maxId() + 1,
+                NameDictionary.VACCINES.maxId() + 1, today, daysPerTask);
+        Counters counters = ForkJoinPool.commonPool().invoke(new ReportTask(tables, 0, days));
+        return new CapacityReport(first, counters, doses);
+    }
+
+    // The report as lines of text: the days with any slots, the caregivers, and the vaccines with their
+    // projected shortfall
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-12s %9s %9s %9s %12s", "Date", "Offered", "Booked", "Canceled", "Utilisation"));
+        long offered = 0;
+        long booked = 0;
+        long canceled = 0;
+        for (int d = 0; d < counters.dayOffered.length; d++) {
+            if (counters.dayOffered[d] == 0 && counters.dayCanceled[d] == 0) {
+                continue;
+            }
+            lines.add(String.format("%-12s %9d %9d %9d %11.1f%%", from.plusDays(d), counters.dayOffered[d],
+                    counters.dayBooked[d], counters.dayCanceled[d],
+                    percent(counters.dayBooked[d], counters.dayOffered[d])));
+            offered += counters.dayOffered[d];
+            booked += counters.dayBooked[d];
+            canceled += counters.dayCanceled[d];
+        }
+        lines.add(String.format("%-12s %9d %9d %9d %11.1f%%", "Total", offered, booked, canceled,
+                percent(booked, offered)));
+
+        lines.add("");
+        lines.add(String.format("%-24s %9s %9s %9s %12s", "Caregiver", "Offered", "Booked", "Canceled",
+                "Utilisation"));
+        for (int c = 1; c < counters.caregiverOffered.length; c++) {
+            if (counters.caregiverOffered[c] == 0 && counters.caregiverCanceled[c] == 0) {
+                continue;
+            }
+            lines.add(String.format("%-24s %9d %9d %9d %11.1f%%", NameDictionary.CAREGIVERS.name(c),
+                    counters.caregiverOffered[c], counters.caregiverBooked[c], counters.caregiverCanceled[c],
+                    percent(counters.caregiverBooked[c], counters.caregiverOffered[c])));
+        }
+
+        // the free slots still ahead are expected to be booked in the same proportions as so far
+        lines.add("");
+        lines.add(String.format("%-24s %9s %9s %9s %9s %9s", "Vaccine", "Booked", "Canceled", "Doses", "Demand",
+                "Shortfall"));
+        long totalBooked = 0;
+        for (int vaccine : doses.keySet()) {
+            totalBooked += booked(vaccine);
+        }
+        for (Map.Entry<Integer, Integer> entry : doses.entrySet()) {
+            int vaccine = entry.getKey();
+            double share = totalBooked == 0 ? 1.0 / doses.size() : (double) booked(vaccine) / totalBooked;
+            long demand = Math.round(counters.futureFree * share);
+            lines.add(String.format("%-24s %9d %9d %9d %9d %9d", NameDictionary.VACCINES.name(vaccine),
+                    booked(vaccine), vaccine < counters.vaccineCanceled.length ? counters.vaccineCanceled[vaccine] : 0,
+                    entry.getValue(), demand, Math.max(0, demand - entry.getValue())));
+        }
+        return lines;
+    }
+
+    private long booked(int vaccine) {
+        return vaccine < counters.vaccineBooked.length ? counters.vaccineBooked[vaccine] : 0;
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0.0 : 100.0 * part / whole;
+    }
+
+    // The doses left of every vaccine, including changes the inventory has not saved yet
+    private static Map<Integer, Integer> readDoses() throws SQLException {
+        Map<Integer, Integer> doses = new LinkedHashMap<>();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReadConnection();
+            ResultSet resultSet = con.prepareStatement(selectVaccines).executeQuery();
+            VaccineInventory inventory = VaccineInventory.getInstance();
+            while (resultSet.next()) {
+                String name = resultSet.getString("Name");
+                doses.put(NameDictionary.VACCINES.intern(name),
+                        inventory.peekAvailableDoses(name, resultSet.getInt("Doses")));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return doses;
+    }
+
+    // Streams the free, booked and canceled slots of one shard
+    private static Columns[] readShard(int shard, Date from, Date to) throws SQLException {
+        LocalDate first = from.toLocalDate();
+        Columns free = new Columns();
+        Columns booked = new Columns();
+        Columns canceled = new Columns();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = shard == 0 ? cm.createReadConnection() : cm.createShardConnection(shard);
+            ResultSet resultSet = query(con, selectFree, from, to);
+            while (resultSet.next()) {
+                free.add(day(resultSet, first), NameDictionary.CAREGIVERS.intern(resultSet.getString("Username")), 0,
+                        resultSet.getInt("Free"));
+            }
+            resultSet = query(con, selectFreeSlots, from, to);
+            while (resultSet.next()) {
+                free.add(day(resultSet, first), NameDictionary.CAREGIVERS.intern(resultSet.getString("Username")), 0,
+                        Long.bitCount(resultSet.getLong("Slots0")) + Long.bitCount(resultSet.getLong("Slots1")));
+            }
+            resultSet = query(con, selectBooked, from, to);
+            while (resultSet.next()) {
+                booked.add(day(resultSet, first), NameDictionary.CAREGIVERS.intern(resultSet.getString("CaregiverName")),
+                        NameDictionary.VACCINES.intern(resultSet.getString("VaccineName")), 1);
+            }
+            resultSet = query(con, selectCanceled, from, to);
+            while (resultSet.next()) {
+                canceled.add(day(resultSet, first),
+                        NameDictionary.CAREGIVERS.intern(resultSet.getString("CaregiverName")),
+                        NameDictionary.VACCINES.intern(resultSet.getString("VaccineName")), 1);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return new Columns[]{free, booked, canceled};
+    }
+
+    private static ResultSet query(Connection con, String sql, Date from, Date to) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        statement.setDate(1, from);
+        statement.setDate(2, to);
+        statement.setDate(3, from);
+        statement.setDate(4, to);
+        return statement.executeQuery();
+    }
+
+    private static int day(ResultSet resultSet, LocalDate first) throws SQLException {
+        return (int) ChronoUnit.DAYS.between(first, resultSet.getDate("Time").toLocalDate());
+    }
+
+    // Rows as they are read, before they are grouped by day
+    private static class Columns {
+        private final IntList days = new IntList();
+        private final IntList caregivers = new IntList();
+        private final IntList vaccines = new IntList();
+        private final IntList counts = new IntList();
+
+        private void add(int day, int caregiver, int vaccine, int count) {
+            days.add(day);
+            caregivers.add(caregiver);
+            vaccines.add(vaccine);
+            counts.add(count);
+        }
+
+        private void append(Columns other) {
+            for (int i = 0; i < other.days.size(); i++) {
+                add(other.days.get(i), other.caregivers.get(i), other.vaccines.get(i), other.counts.get(i));
+            }
+        }
+
+        private DayTable byDay(int days) {
+            return DayTable.build(days, this.days, caregivers, vaccines, counts);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package scheduler.report;
+
+// Counters are the totals of a report, kept in primitive arrays indexed by day (counted from the first day of
+// the report), by caregiver id and by vaccine id (see NameDictionary). Every day is counted by exactly one part
+// of the report, so the parts share the per-day arrays and write only their own days into them; merging adds up
+// the caregiver and vaccine counters only.
+class Counters {
+
+    final long[] dayOffered;
+    final long[] dayBooked;
+    final long[] dayCanceled;
+    final long[] caregiverOffered;
+    final long[] caregiverBooked;
+    final long[] caregiverCanceled;
+    final long[] vaccineBooked;
+    final long[] vaccineCanceled;
+    // free slots on the days from today on, which bookings may still use up
+    long futureFree;
+
+    Counters(long[] dayOffered, long[] dayBooked, long[] dayCanceled, int caregivers, int vaccines) {
+        this.dayOffered = dayOffered;
+        this.dayBooked = dayBooked;
+        this.dayCanceled = dayCanceled;
+        caregiverOffered = new long[caregivers];
+        caregiverBooked = new long[caregivers];
+        caregiverCanceled = new long[caregivers];
+        vaccineBooked = new long[vaccines];
+        vaccineCanceled = new long[vaccines];
+    }
+
+    // Adds the counts of another part of the report to these
+    void merge(Counters other) {
+        add(caregiverOffered, other.caregiverOffered);
+        add(caregiverBooked, other.caregiverBooked);
+        add(caregiverCanceled, other.caregiverCanceled);
+        add(vaccineBooked, other.vaccineBooked);
+        add(vaccineCanceled, other.vaccineCanceled);
+        futureFree += other.futureFree;
+    }
+
+    private static void add(long[] into, long[] from) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] += from[i];
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package scheduler.report;
+
+import scheduler.util.IntList;
+
+import java.util.Arrays;
+
+// DayTable holds the rows of one table as int columns (caregiver and vaccine ids, a count) grouped by day, so
+// the rows of any range of days are one contiguous index range
+class DayTable {
+
+    final int[] caregivers;
+    final int[] vaccines;
+    final int[] counts;
+    // the rows of day d (counted from the first day of the report) are start[d] until start[d + 1]
+    final int[] start;
+
+    private DayTable(int[] caregivers, int[] vaccines, int[] counts, int[] start) {
+        this.caregivers = caregivers;
+        this.vaccines = vaccines;
+        this.counts = counts;
+        this.start = start;
+    }
+
+    // Groups the rows by day with a counting sort; days are relative to the first day of the report
+    static DayTable build(int days, IntList day, IntList caregiver, IntList vaccine, IntList count) {
+        int[] start = new int[days + 1];
+        for (int i = 0; i < day.size(); i++) {
+            start[day.get(i) + 1]++;
+        }
+        for (int d = 0; d < days; d++) {
+            start[d + 1] += start[d];
+        }
+        int[] next = Arrays.copyOf(start, days);
+        int[] caregivers = new int[day.size()];
+        int[] vaccines = new int[day.size()];
+        int[] counts = new int[day.size()];
+        for (int i = 0; i < day.size(); i++) {
+            int at = next[day.get(i)]++;
+            caregivers[at] = caregiver.get(i);
+            vaccines[at] = vaccine.get(i);
+            counts[at] = count.get(i);
+        }
+        return new DayTable(caregivers, vaccines, counts, start);
+    }
+}
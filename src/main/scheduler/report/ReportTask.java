@@ -0,0 +1,92 @@
+package scheduler.report;
+
+import java.util.concurrent.RecursiveTask;
+
+// ReportTask counts a range of days: ranges longer than the split size are halved and counted in parallel,
+// and the counters of the halves are merged. Each range writes its days into the per-day arrays of Tables, which
+// no other range touches, so only the caregiver and vaccine counters are allocated per range and merged
+class ReportTask extends RecursiveTask<Counters> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Tables tables;
+    private final int firstDay;
+    private final int endDay;
+
+    ReportTask(Tables tables, int firstDay, int endDay) {
+        this.tables = tables;
+        this.firstDay = firstDay;
+        this.endDay = endDay;
+    }
+
+    @Override
+    protected Counters compute() {
+        if (endDay - firstDay > tables.daysPerTask) {
+            int middle = (firstDay + endDay) >>> 1;
+            ReportTask left = new ReportTask(tables, firstDay, middle);
+            left.fork();
+            Counters counters = new ReportTask(tables, middle, endDay).compute();
+            counters.merge(left.join());
+            return counters;
+        }
+        Counters counters = new Counters(tables.dayOffered, tables.dayBooked, tables.dayCanceled, tables.caregivers,
+                tables.vaccines);
+        for (int d = firstDay; d < endDay; d++) {
+            DayTable free = tables.free;
+            for (int i = free.start[d]; i < free.start[d + 1]; i++) {
+                counters.dayOffered[d] += free.counts[i];
+                counters.caregiverOffered[free.caregivers[i]] += free.counts[i];
+                if (d >= tables.today) {
+                    counters.futureFree += free.counts[i];
+                }
+            }
+            DayTable booked = tables.booked;
+            for (int i = booked.start[d]; i < booked.start[d + 1]; i++) {
+                // a booked slot was offered too, its free bit is cleared by the booking
+                counters.dayOffered[d]++;
+                counters.dayBooked[d]++;
+                counters.caregiverOffered[booked.caregivers[i]]++;
+                counters.caregiverBooked[booked.caregivers[i]]++;
+                counters.vaccineBooked[booked.vaccines[i]]++;
+            }
+            DayTable canceled = tables.canceled;
+            for (int i = canceled.start[d]; i < canceled.start[d + 1]; i++) {
+                counters.dayCanceled[d]++;
+                counters.caregiverCanceled[canceled.caregivers[i]]++;
+                counters.vaccineCanceled[canceled.vaccines[i]]++;
+            }
+        }
+        return counters;
+    }
+
+    // The loaded tables, the per-day counters shared by all ranges and the sizes of the other counter arrays
+    static class Tables {
+        final DayTable free;
+        final DayTable booked;
+        final DayTable canceled;
+        final int days;
+        final int caregivers;
+        final int vaccines;
+        // the first day that is not in the past, counted from the first day of the report
+        final int today;
+        final int daysPerTask;
+        final long[] dayOffered;
+        final long[] dayBooked;
+        final long[] dayCanceled;
+
+        Tables(DayTable free, DayTable booked, DayTable canceled, int days, int caregivers, int vaccines, int today,
+               int daysPerTask) {
+            this.free = free;
+            this.booked = booked;
+            this.canceled = canceled;
+            this.days = days;
+            this.caregivers = caregivers;
+            this.vaccines = vaccines;
+            this.today = today;
+            this.daysPerTask = daysPerTask;
+            this.dayOffered = new long[days];
+            this.dayBooked = new long[days];
+            this.dayCanceled = new long[days];
+        }
+    }
+}
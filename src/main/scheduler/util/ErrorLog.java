@@ -0,0 +1,60 @@
+package scheduler.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// ErrorLog reports the errors of background threads on stderr, so they do not land between the replies at the
+// prompt. An error that keeps coming back, e.g. every flush while the database is down, is printed with its stack
+// trace the first time and then at most once every ErrorLogRepeatSeconds (default 60) with the number of times it
+// happened meanwhile. Errors are told apart by their message, so callers keep the message free of values that
+// change from one occurrence to the next.
+public class ErrorLog {
+
+    private static final long repeatMillis = Util.intSetting("ErrorLogRepeatSeconds", 60) * 1000L;
+    private static final int MAX_MESSAGES = 256;
+
+    // guarded by the class: message -> {printed at, occurrences since}
+    private static final Map<String, long[]> recent = new HashMap<>();
+
+    private ErrorLog() {
+    }
+
+    public static void report(String message) {
+        report(message, null);
+    }
+
+    public static void report(String message, Throwable e) {
+        long now = System.currentTimeMillis();
+        long suppressed;
+        synchronized (ErrorLog.class) {
+            long[] seen = recent.get(message);
+            if (seen != null && now - seen[0] < repeatMillis) {
+                seen[1]++;
+                return;
+            }
+            suppressed = seen == null ? 0 : seen[1];
+            if (seen == null && recent.size() >= MAX_MESSAGES) {
+                forgetOld(now);
+            }
+            recent.put(message, new long[]{now, 0});
+        }
+        System.err.println(suppressed == 0 ? message
+                : message + " (" + suppressed + " more times in the last " + repeatMillis / 1000 + " seconds)");
+        if (e != null) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void forgetOld(long now) {
+        Iterator<long[]> iterator = recent.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next()[0] >= repeatMillis) {
+                iterator.remove();
+            }
+        }
+        if (recent.size() >= MAX_MESSAGES) {
+            recent.clear();
+        }
+    }
+}
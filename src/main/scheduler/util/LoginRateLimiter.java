@@ -0,0 +1,184 @@
+package scheduler.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// LoginRateLimiter decides whether a login attempt may go to the database and the password hash at all.
+// Each username has its own token bucket, and all attempts together share a global bucket. Buckets are
+// lock-free (the whole state is one AtomicLong) and live in a map with a bounded size. Once it is full, each new
+// username looks at up to EVICTION_SAMPLE usernames in the order they were added and forgets the buckets that
+// have refilled completely, since a new bucket behaves exactly the same; buckets still in use go to the back of
+// the queue. Eviction costs a bounded amount of work per new username, not a scan of the map.
+public class LoginRateLimiter {
+
+    // a bucket stores its tokens in thousandths in the low bits and the time of the last refill above them
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long MILLI = 1000;
+    // the largest bucket whose thousandths fit the token bits
+    private static final int MAX_CAPACITY = (int) (TOKEN_MASK / MILLI);
+    private static final int EVICTION_SAMPLE = 16;
+
+    private static final LoginRateLimiter instance = new LoginRateLimiter(
+            capacitySetting("LoginAttemptsPerMinute", 5),
+            capacitySetting("GlobalLoginsPerSecond", 50),
+            Util.intSetting("LoginLimiterMaxUsers", 100_000));
+
+    private final long epoch = System.currentTimeMillis();
+    private final int userCapacity;
+    private final double userRefillPerMilli;
+    private final int maxUsers;
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    // the usernames in users, oldest first
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private volatile boolean enabled = true;
+
+    // Throws IllegalArgumentException if a capacity is negative or larger than MAX_CAPACITY
+    public LoginRateLimiter(int attemptsPerMinute, int globalPerSecond, int maxUsers) {
+        if (attemptsPerMinute < 0 || attemptsPerMinute > MAX_CAPACITY || globalPerSecond < 0
+                || globalPerSecond > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Login limits must be between 0 and " + MAX_CAPACITY);
+        }
+        this.userCapacity = attemptsPerMinute;
+        this.userRefillPerMilli = attemptsPerMinute / 60_000.0;
+        this.maxUsers = maxUsers;
+        this.global = new TokenBucket(globalPerSecond, globalPerSecond / 1000.0, now());
+    }
+
+    public static LoginRateLimiter getInstance() {
+        return instance;
+    }
+
+    // Turns limiting off or back on; the load driver turns it off, since its simulated users log in far more often
+    // than people do and the run would measure refusals instead of logins
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Takes a token from the global bucket and one for the user, or throws if either is empty. The global bucket
+    // is checked first, so a flood of attempts is refused before it touches the map; an attempt refused for the
+    // user gives the global token back
+    public void acquire(String key) {
+        if (!enabled) {
+            return;
+        }
+        long now = now();
+        if (!global.tryAcquire(now)) {
+            throw new TooManyAttemptsException("Too many login attempts");
+        }
+        TokenBucket bucket = users.get(key);
+        if (bucket == null) {
+            if (users.size() >= maxUsers) {
+                evictIdle(now);
+            }
+            if (users.size() < maxUsers) {
+                bucket = add(key, now);
+            }
+        }
+        // while the map is full of active buckets, new users are only limited by the global bucket
+        if (bucket != null && !bucket.tryAcquire(now)) {
+            global.release();
+            throw new TooManyAttemptsException("Too many login attempts for " + key);
+        }
+    }
+
+    private static int capacitySetting(String variable, int defaultValue) {
+        int value = Util.intSetting(variable, defaultValue);
+        if (value < 0 || value > MAX_CAPACITY) {
+            System.out.println("Ignoring " + variable + " outside 0.." + MAX_CAPACITY + ": " + value);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private TokenBucket add(String key, long now) {
+        TokenBucket bucket = new TokenBucket(userCapacity, userRefillPerMilli, now);
+        TokenBucket existing = users.putIfAbsent(key, bucket);
+        if (existing != null) {
+            return existing;
+        }
+        order.add(key);
+        return bucket;
+    }
+
+    // Forgets refilled buckets among the oldest EVICTION_SAMPLE usernames until there is room for one more
+    private void evictIdle(long now) {
+        for (int i = 0; i < EVICTION_SAMPLE && users.size() >= maxUsers; i++) {
+            String key = order.poll();
+            if (key == null) {
+                return;
+            }
+            TokenBucket bucket = users.get(key);
+            if (bucket == null) {
+                continue;
+            }
+            if (bucket.isFull(now)) {
+                users.remove(key, bucket);
+            } else {
+                order.add(key); // still in use: look at it again after the others
+            }
+        }
+    }
+
+    private long now() {
+        return System.currentTimeMillis() - epoch;
+    }
+
+    private static class TokenBucket {
+        private final long capacity;
+        private final double refillPerMilli;
+        private final AtomicLong state;
+
+        private TokenBucket(int capacity, double refillPerMilli, long now) {
+            this.capacity = capacity * MILLI;
+            this.refillPerMilli = refillPerMilli * MILLI;
+            this.state = new AtomicLong(pack(now, this.capacity));
+        }
+
+        private boolean tryAcquire(long now) {
+            while (true) {
+                long current = state.get();
+                long last = current >>> TOKEN_BITS;
+                long tokens = refill(current, now);
+                if (tokens < MILLI) {
+                    return false;
+                }
+                // keep the old refill time while less than a thousandth of a token has accrued, otherwise
+                // slow refill rates would never add anything under frequent attempts
+                long time = tokens > (current & TOKEN_MASK) || tokens == capacity ? Math.max(now, last) : last;
+                if (state.compareAndSet(current, pack(time, tokens - MILLI))) {
+                    return true;
+                }
+            }
+        }
+
+        // Gives back a token taken by tryAcquire
+        private void release() {
+            while (true) {
+                long current = state.get();
+                long tokens = Math.min(capacity, (current & TOKEN_MASK) + MILLI);
+                if (state.compareAndSet(current, (current & ~TOKEN_MASK) | tokens)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean isFull(long now) {
+            return refill(state.get(), now) >= capacity;
+        }
+
+        private long refill(long current, long now) {
+            long elapsed = Math.max(0, now - (current >>> TOKEN_BITS));
+            long tokens = (current & TOKEN_MASK) + (long) (elapsed * refillPerMilli);
+            return Math.min(capacity, tokens);
+        }
+
+        private static long pack(long time, long tokens) {
+            return (time << TOKEN_BITS) | tokens;
+        }
+    }
+}
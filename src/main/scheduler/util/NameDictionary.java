@@ -0,0 +1,63 @@
+package scheduler.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// NameDictionary gives every name (username, vaccine name) a small int id, so in-memory structures can store
+// ints instead of String references. Ids are dense, start at 1 and are never reused, which lets callers index
+// plain arrays with them. Lookups of known names are lock-free; assigning a new id takes a lock.
+public class NameDictionary {
+
+    public static final NameDictionary PATIENTS = new NameDictionary();
+    public static final NameDictionary CAREGIVERS = new NameDictionary();
+    public static final NameDictionary VACCINES = new NameDictionary();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size = 0;
+
+    // Returns the id of the name, assigning the next free id if it has none yet
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            int next = size + 1;
+            String[] current = names;
+            if (next >= current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[next] = name;
+            names = current; // publish the name before its id
+            ids.put(name, next);
+            size = next;
+            return next;
+        }
+    }
+
+    // Returns the id of the name, or 0 if it has none
+    public int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0 : id;
+    }
+
+    // Returns the name with the given id
+    public String name(int id) {
+        String[] current = names;
+        if (id <= 0 || id >= current.length || current[id] == null) {
+            throw new IllegalArgumentException("Unknown id: " + id);
+        }
+        return current[id];
+    }
+
+    // The highest id assigned so far; arrays indexed by id need one more element than this
+    public synchronized int maxId() {
+        return size;
+    }
+}
@@ -0,0 +1,138 @@
+package scheduler.util;
+
+// Slots splits a day into equally sized time slots when SlotMinutes is set (e.g. 15). The free slots of a
+// caregiver on one day are kept as a bitmap of two longs: bit i of word 0 is slot i, bit i of word 1 is
+// slot 64 + i, and a set bit means the slot is still free. When SlotMinutes is not set the scheduler books
+// whole days, and every appointment has slot 0.
+public class Slots {
+
+    public static final int MAX_SLOTS = 128;
+
+    private static final int minutes = Util.intSetting("SlotMinutes", 0);
+    private static final int slotsPerDay = validSlotsPerDay(minutes);
+
+    private Slots() {
+    }
+
+    // True if availability and appointments use sub-day slots
+    public static boolean enabled() {
+        return slotsPerDay > 0;
+    }
+
+    public static int slotsPerDay() {
+        return slotsPerDay;
+    }
+
+    // Index of the word holding the slot
+    public static int word(int slot) {
+        return slot >>> 6;
+    }
+
+    // Mask of the slot within its word
+    public static long bit(int slot) {
+        return 1L << (slot & 63);
+    }
+
+    // Bitmap with the slots from first to last (both inclusive) set
+    public static long[] range(int first, int last) {
+        long[] bitmap = new long[2];
+        for (int slot = first; slot <= last; slot++) {
+            bitmap[word(slot)] |= bit(slot);
+        }
+        return bitmap;
+    }
+
+    // Bitmap with every slot of the day set
+    public static long[] wholeDay() {
+        return range(0, slotsPerDay - 1);
+    }
+
+    public static boolean isFree(long[] bitmap, int slot) {
+        return (bitmap[word(slot)] & bit(slot)) != 0;
+    }
+
+    // The first free slot at or after the given one, or -1 if there is none
+    public static int firstFree(long[] bitmap, int from) {
+        for (int w = word(from); w < 2; w++) {
+            long candidates = bitmap[w];
+            if (w == word(from)) {
+                candidates &= -bit(from); // clear the bits below from
+            }
+            if (candidates != 0) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(candidates);
+                return slot < slotsPerDay ? slot : -1;
+            }
+        }
+        return -1;
+    }
+
+    public static int count(long[] bitmap) {
+        return Long.bitCount(bitmap[0]) + Long.bitCount(bitmap[1]);
+    }
+
+    // Slot starting at the given time of day ("HH:mm"); throws IllegalArgumentException if no slot starts then
+    public static int parse(String time) {
+        String[] parts = time.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        int minuteOfDay = Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+        if (minuteOfDay < 0 || minuteOfDay >= 24 * 60 || minuteOfDay % minutes != 0) {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        return minuteOfDay / minutes;
+    }
+
+    // Bitmap of the slots covering "HH:mm-HH:mm" (start inclusive, end exclusive); the end may be "24:00"
+    public static long[] parseRange(String range) {
+        String[] parts = range.split("-");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid time range: " + range);
+        }
+        int first = parse(parts[0]);
+        int end = parts[1].equals("24:00") ? slotsPerDay : parse(parts[1]);
+        if (end <= first) {
+            throw new IllegalArgumentException("Invalid time range: " + range);
+        }
+        return range(first, end - 1);
+    }
+
+    // Minutes from the start of the day to the start of the slot
+    public static int startMinute(int slot) {
+        return slot * minutes;
+    }
+
+    // Start time of a slot as "HH:mm"
+    public static String format(int slot) {
+        int minuteOfDay = startMinute(slot);
+        return String.format("%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    // The free slots as a list of time ranges, e.g. "09:00-12:00,13:00-17:00"
+    public static String describe(long[] bitmap) {
+        StringBuilder sb = new StringBuilder();
+        int slot = firstFree(bitmap, 0);
+        while (slot >= 0) {
+            int end = slot;
+            while (end + 1 < slotsPerDay && isFree(bitmap, end + 1)) {
+                end++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(format(slot)).append('-').append(end + 1 == slotsPerDay ? "24:00" : format(end + 1));
+            slot = end + 1 < slotsPerDay ? firstFree(bitmap, end + 1) : -1;
+        }
+        return sb.toString();
+    }
+
+    private static int validSlotsPerDay(int minutes) {
+        if (minutes <= 0) {
+            return 0;
+        }
+        if ((24 * 60) % minutes != 0 || (24 * 60) / minutes > MAX_SLOTS) {
+            throw new IllegalStateException("SlotMinutes must divide a day into at most " + MAX_SLOTS + " slots");
+        }
+        return (24 * 60) / minutes;
+    }
+}
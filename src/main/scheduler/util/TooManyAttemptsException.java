@@ -0,0 +1,11 @@
+package scheduler.util;
+
+// Thrown when a login attempt is rejected by the LoginRateLimiter before it reaches the database
+public class TooManyAttemptsException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TooManyAttemptsException(String message) {
+        super(message);
+    }
+}
@@ -48,4 +48,18 @@ public class Util {
 
         return Arrays.copyOf(bytes, i + 1);
     }
+
+    // Reads an integer setting from the environment, falling back to the default if it is unset or invalid
+    public static int intSetting(String variable, int defaultValue) {
+        String value = System.getenv(variable);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + variable + ": " + value);
+            return defaultValue;
+        }
+    }
 }